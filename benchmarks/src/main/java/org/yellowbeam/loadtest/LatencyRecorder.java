@@ -0,0 +1,79 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies of one stage of the load test, with their percentiles.
+ */
+public class LatencyRecorder {
+
+  private final String stage;
+  private final AtomicLong failures = new AtomicLong();
+  private long[] samples = new long[1024];
+  private int count;
+
+  public LatencyRecorder(String stage) {
+    this.stage = stage;
+  }
+
+  public synchronized void record(long nanos) {
+    if (count == samples.length) {
+      samples = Arrays.copyOf(samples, count * 2);
+    }
+    samples[count++] = nanos;
+  }
+
+  public void failed() {
+    failures.incrementAndGet();
+  }
+
+  public synchronized int getCount() {
+    return count;
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * @return one report line: count, failures and the p50, p90, p99 and max latency in ms
+   */
+  public synchronized String report() {
+    long[] sorted = Arrays.copyOf(samples, count);
+    Arrays.sort(sorted);
+    return String.format("%-12s %8d %8d %9.1f %9.1f %9.1f %9.1f", stage, count,
+        failures.get(), millis(sorted, 0.50), millis(sorted, 0.90), millis(sorted, 0.99),
+        millis(sorted, 1.0));
+  }
+
+  public static String header() {
+    return String.format("%-12s %8s %8s %9s %9s %9s %9s", "stage", "ok", "failed", "p50 ms",
+        "p90 ms", "p99 ms", "max ms");
+  }
+
+  private static double millis(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.loadtest;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * A simulated browser on the signaling WebSocket. Callers register the message id they expect
+ * before sending the request that triggers it, and wait for it with a timeout.
+ */
+public class LoadClient extends TextWebSocketHandler {
+
+  private static final Gson gson = new Gson();
+
+  private final ConcurrentHashMap<String, CompletableFuture<JsonObject>> expected =
+      new ConcurrentHashMap<>();
+  private WebSocketSession session;
+
+  public static LoadClient connect(StandardWebSocketClient client, String url,
+      long timeoutMillis) throws Exception {
+    LoadClient loadClient = new LoadClient();
+    loadClient.session =
+        client.doHandshake(loadClient, url).get(timeoutMillis, TimeUnit.MILLISECONDS);
+    return loadClient;
+  }
+
+  /**
+   * @return future completed with the next message of the given id
+   */
+  public CompletableFuture<JsonObject> expect(String id) {
+    CompletableFuture<JsonObject> future = new CompletableFuture<>();
+    expected.put(id, future);
+    return future;
+  }
+
+  public synchronized void send(JsonObject message) throws IOException {
+    session.sendMessage(new TextMessage(message.toString()));
+  }
+
+  /**
+   * Sends a request and waits for its response.
+   */
+  public JsonObject request(JsonObject message, String responseId, long timeoutMillis)
+      throws Exception {
+    CompletableFuture<JsonObject> response = expect(responseId);
+    send(message);
+    return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void close() {
+    try {
+      session.close();
+    } catch (IOException e) {
+      // Already closed
+    }
+  }
+
+  @Override
+  protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+    JsonObject json = gson.fromJson(message.getPayload(), JsonObject.class);
+    CompletableFuture<JsonObject> future = expected.remove(json.get("id").getAsString());
+    if (future != null) {
+      future.complete(json);
+    }
+  }
+
+  @Override
+  public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+    for (CompletableFuture<JsonObject> future : expected.values()) {
+      future.completeExceptionally(new IOException("Connection closed: " + status));
+    }
+    expected.clear();
+  }
+}
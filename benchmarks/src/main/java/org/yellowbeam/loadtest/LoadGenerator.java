@@ -0,0 +1,240 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.loadtest;
+
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Headless load generator for the signaling server. Each flow opens three WebSocket clients, a
+ * caller, a callee and a viewer, and runs {@code register}, {@code call}, {@code initStream},
+ * {@code streamRequest} and {@code stop} like the browsers do. The latency of every stage and the
+ * overall throughput are printed at the end.
+ *
+ * Point the server to a {@link MockMediaServer} to test it without media:
+ * {@code java -cp benchmarks/target/benchmarks.jar org.yellowbeam.loadtest.LoadGenerator
+ * --url=wss://localhost:8443/call --flows=1000 --concurrency=100}.
+ */
+public class LoadGenerator {
+
+  private static final String SDP_OFFER = "v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+      + "s=-\r\nt=0 0\r\nm=video 9 UDP/TLS/RTP/SAVPF 96\r\nc=IN IP4 0.0.0.0\r\n"
+      + "a=rtpmap:96 VP8/90000\r\na=sendrecv\r\n";
+
+  // register x2, call, incomingCallResponse, initStream, streamRequest, stop
+  private static final int REQUESTS_PER_FLOW = 7;
+
+  private final String url;
+  private final int flows;
+  private final int concurrency;
+  private final long timeoutMillis;
+  private final String prefix = Long.toString(System.currentTimeMillis(), 36);
+  private final StandardWebSocketClient client = new StandardWebSocketClient();
+
+  private final Map<String, LatencyRecorder> stages = new LinkedHashMap<>();
+
+  public LoadGenerator(String url, int flows, int concurrency, long timeoutMillis)
+      throws Exception {
+    this.url = url;
+    this.flows = flows;
+    this.concurrency = concurrency;
+    this.timeoutMillis = timeoutMillis;
+    for (String stage : new String[] { "connect", "register", "call", "initStream",
+        "streamRequest", "stop", "flow" }) {
+      stages.put(stage, new LatencyRecorder(stage));
+    }
+    // The development server uses a self-signed certificate
+    client.setUserProperties(Collections.<String, Object>singletonMap(
+        "org.apache.tomcat.websocket.SSL_CONTEXT", trustAll()));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (arg.startsWith("--") && equals > 0) {
+        options.put(arg.substring(2, equals), arg.substring(equals + 1));
+      }
+    }
+    LoadGenerator generator = new LoadGenerator(
+        get(options, "url", "wss://localhost:8443/call"),
+        Integer.parseInt(get(options, "flows", "1000")),
+        Integer.parseInt(get(options, "concurrency", "100")),
+        Long.parseLong(get(options, "timeout-ms", "10000")));
+    generator.run();
+    System.exit(0);
+  }
+
+  private static String get(Map<String, String> options, String name, String defaultValue) {
+    return options.containsKey(name) ? options.get(name) : defaultValue;
+  }
+
+  public void run() throws Exception {
+    System.out.printf("Running %d flows against %s, %d at a time%n", flows, url, concurrency);
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    List<CompletableFuture<Void>> pending = new ArrayList<>(flows);
+    long start = System.nanoTime();
+    for (int i = 0; i < flows; i++) {
+      final int flow = i;
+      pending.add(CompletableFuture.runAsync(() -> runFlow(flow), executor));
+    }
+    CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    executor.shutdown();
+
+    System.out.println(LatencyRecorder.header());
+    for (LatencyRecorder stage : stages.values()) {
+      System.out.println(stage.report());
+    }
+    int completed = stages.get("flow").getCount();
+    System.out.printf("%d of %d flows completed in %.1f s: %.1f flows/s, %.1f requests/s%n",
+        completed, flows, seconds, completed / seconds, completed * REQUESTS_PER_FLOW / seconds);
+  }
+
+  private void runFlow(int flow) {
+    String callerName = prefix + "-caller-" + flow;
+    String calleeName = prefix + "-callee-" + flow;
+    String stream = prefix + "-stream-" + flow;
+    List<LoadClient> clients = new ArrayList<>(3);
+    String stage = "connect";
+    long flowStart = System.nanoTime();
+    try {
+      long start = System.nanoTime();
+      LoadClient caller = LoadClient.connect(client, url, timeoutMillis);
+      clients.add(caller);
+      LoadClient callee = LoadClient.connect(client, url, timeoutMillis);
+      clients.add(callee);
+      LoadClient viewer = LoadClient.connect(client, url, timeoutMillis);
+      clients.add(viewer);
+      start = record(stage, start);
+
+      stage = "register";
+      expectAccepted(caller.request(register(callerName), "registerResponse", timeoutMillis));
+      expectAccepted(callee.request(register(calleeName), "registerResponse", timeoutMillis));
+      start = record(stage, start);
+
+      stage = "call";
+      CompletableFuture<JsonObject> incomingCall = callee.expect("incomingCall");
+      CompletableFuture<JsonObject> startCommunication = callee.expect("startCommunication");
+      CompletableFuture<JsonObject> callResponse = caller.expect("callResponse");
+      JsonObject call = message("call");
+      call.addProperty("from", callerName);
+      call.addProperty("to", calleeName);
+      call.addProperty("sdpOffer", SDP_OFFER);
+      caller.send(call);
+      incomingCall.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      JsonObject accept = message("incomingCallResponse");
+      accept.addProperty("from", callerName);
+      accept.addProperty("callResponse", "accept");
+      accept.addProperty("sdpOffer", SDP_OFFER);
+      callee.send(accept);
+      expectAccepted(callResponse.get(timeoutMillis, TimeUnit.MILLISECONDS));
+      startCommunication.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      start = record(stage, start);
+
+      stage = "initStream";
+      JsonObject initStream = message("initStream");
+      initStream.addProperty("stream", stream);
+      expectAccepted(caller.request(initStream, "initStreamResponse", timeoutMillis));
+      start = record(stage, start);
+
+      stage = "streamRequest";
+      JsonObject streamRequest = message("streamRequest");
+      streamRequest.addProperty("stream", stream);
+      streamRequest.addProperty("video", "callerVid");
+      streamRequest.addProperty("sdpOffer", SDP_OFFER);
+      expectAccepted(viewer.request(streamRequest, "streamResponse", timeoutMillis));
+      start = record(stage, start);
+
+      stage = "stop";
+      CompletableFuture<JsonObject> stopCommunication = callee.expect("stopCommunication");
+      caller.send(message("stop"));
+      stopCommunication.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      record(stage, start);
+      record("flow", flowStart);
+    } catch (Exception e) {
+      stages.get(stage).failed();
+      stages.get("flow").failed();
+    } finally {
+      for (LoadClient loadClient : clients) {
+        loadClient.close();
+      }
+    }
+  }
+
+  private long record(String stage, long start) {
+    long now = System.nanoTime();
+    stages.get(stage).record(now - start);
+    return now;
+  }
+
+  private static JsonObject message(String id) {
+    JsonObject message = new JsonObject();
+    message.addProperty("id", id);
+    return message;
+  }
+
+  private static JsonObject register(String name) {
+    JsonObject register = message("register");
+    register.addProperty("name", name);
+    return register;
+  }
+
+  private static void expectAccepted(JsonObject response) {
+    if (!"accepted".equals(response.get("response").getAsString())) {
+      throw new IllegalStateException(response.toString());
+    }
+  }
+
+  private static SSLContext trustAll() throws Exception {
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(null, new TrustManager[] { new X509TrustManager() {
+      @Override
+      public void checkClientTrusted(X509Certificate[] chain, String authType) {
+      }
+
+      @Override
+      public void checkServerTrusted(X509Certificate[] chain, String authType) {
+      }
+
+      @Override
+      public X509Certificate[] getAcceptedIssuers() {
+        return new X509Certificate[0];
+      }
+    } }, new SecureRandom());
+    return context;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.loadtest;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.yellowbeam.server.MockMediaServerHandler;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * Mock Kurento Media Server reachable on {@code ws://localhost:8888/kurento}, to run YellowBeam
+ * under load without any media work. Every JSON-RPC request is answered by
+ * {@link MockMediaServerHandler} after {@code mock.latency-ms} milliseconds.
+ *
+ * Start it with {@code java -cp benchmarks/target/benchmarks.jar
+ * org.yellowbeam.loadtest.MockMediaServer --server.port=8888 --mock.latency-ms=5}.
+ */
+@Configuration
+@EnableAutoConfiguration
+@EnableWebSocket
+public class MockMediaServer implements WebSocketConfigurer {
+
+  private static final Logger log = LoggerFactory.getLogger(MockMediaServer.class);
+  private static final Gson gson = new Gson();
+
+  @Value("${mock.latency-ms:0}")
+  private long latencyMillis;
+
+  @Value("${mock.threads:4}")
+  private int threads;
+
+  @Bean
+  public JsonRpcSocket jsonRpcSocket() {
+    return new JsonRpcSocket(new MockMediaServerHandler(0), latencyMillis, threads);
+  }
+
+  @Override
+  public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+    registry.addHandler(jsonRpcSocket(), "/kurento");
+  }
+
+  public static void main(String[] args) throws Exception {
+    SpringApplication app = new SpringApplication(MockMediaServer.class);
+    Map<String, Object> defaults = new HashMap<>();
+    defaults.put("server.port", 8888);
+    app.setDefaultProperties(defaults);
+    app.run(args);
+  }
+
+  /**
+   * JSON-RPC over WebSocket, the transport of the real media server. Answers are delayed on a
+   * scheduler, so a high latency does not need a thread per pending request.
+   */
+  public static class JsonRpcSocket extends TextWebSocketHandler {
+
+    private final MockMediaServerHandler handler;
+    private final long latencyMillis;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+
+    public JsonRpcSocket(MockMediaServerHandler handler, long latencyMillis, int threads) {
+      this.handler = handler;
+      this.latencyMillis = latencyMillis;
+      this.scheduler = Executors.newScheduledThreadPool(threads);
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+      sessions.put(session.getId(), new ConcurrentWebSocketSessionDecorator(session, 10000,
+          1 << 20));
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message)
+        throws Exception {
+      JsonObject request = gson.fromJson(message.getPayload(), JsonObject.class);
+      if (!request.has("id")) {
+        // Notifications need no answer
+        return;
+      }
+      JsonObject response = new JsonObject();
+      response.addProperty("jsonrpc", "2.0");
+      response.add("id", request.get("id"));
+      response.add("result", handler.answer(request.get("method").getAsString(),
+          request.has("params") ? request.getAsJsonObject("params") : new JsonObject()));
+
+      final WebSocketSession out = sessions.get(session.getId());
+      final TextMessage frame = new TextMessage(response.toString());
+      if (latencyMillis > 0) {
+        scheduler.schedule(() -> send(out, frame), latencyMillis, TimeUnit.MILLISECONDS);
+      } else {
+        send(out, frame);
+      }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status)
+        throws Exception {
+      sessions.remove(session.getId());
+    }
+
+    private void send(WebSocketSession session, TextMessage frame) {
+      if (session == null || !session.isOpen()) {
+        return;
+      }
+      try {
+        session.sendMessage(frame);
+      } catch (IOException e) {
+        log.debug(e.getMessage());
+      }
+    }
+  }
+}
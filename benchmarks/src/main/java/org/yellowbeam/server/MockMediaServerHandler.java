@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.message.Request;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Stand-in for a Kurento Media Server. It answers the Kurento JSON-RPC protocol (create, invoke,
+ * subscribe, release, transaction, ping) without doing any media work, optionally after a fixed
+ * latency. Created objects get ids in the format of the real server, offers and answers get a
+ * minimal SDP, and no events are ever sent. It serves clients in the same process through
+ * {@code JsonRpcClientLocal}, and remote ones through the {@code MockMediaServer} WebSocket.
+ */
+public class MockMediaServerHandler extends DefaultJsonRpcHandler<JsonObject> {
+
+  private static final String SDP = "v=0\r\no=- 3812923791 3812923791 IN IP4 0.0.0.0\r\n"
+      + "s=Kurento Media Server\r\nc=IN IP4 0.0.0.0\r\nt=0 0\r\n";
+
+  private final long latencyMillis;
+  private final String sessionId = UUID.randomUUID().toString();
+  private final AtomicLong requests = new AtomicLong();
+  private volatile float usedCpu;
+
+  /**
+   * @param latencyMillis time every request takes before it is answered
+   */
+  public MockMediaServerHandler(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * @param usedCpu CPU usage percentage reported by {@code getUsedCpu}
+   */
+  public void setUsedCpu(float usedCpu) {
+    this.usedCpu = usedCpu;
+  }
+
+  @Override
+  public void handleRequest(Transaction transaction, Request<JsonObject> request)
+      throws Exception {
+    requests.incrementAndGet();
+    if (latencyMillis > 0) {
+      TimeUnit.MILLISECONDS.sleep(latencyMillis);
+    }
+    transaction.sendResponse(answer(request.getMethod(), request.getParams()));
+  }
+
+  /**
+   * @return the result of a request, as the real media server would answer it
+   */
+  public JsonObject answer(String method, JsonObject params) {
+    JsonObject result = new JsonObject();
+    switch (method) {
+      case "ping":
+        result.addProperty("value", "pong");
+        break;
+      case "create":
+        result.addProperty("value", newObjectId(params));
+        break;
+      case "invoke":
+        result.add("value", invoke(params.get("operation").getAsString()));
+        break;
+      case "subscribe":
+        result.addProperty("value", UUID.randomUUID().toString());
+        break;
+      case "transaction": {
+        JsonArray results = new JsonArray();
+        for (JsonElement operation : params.getAsJsonArray("operations")) {
+          JsonObject request = operation.getAsJsonObject();
+          results.add(answer(request.get("method").getAsString(),
+              request.getAsJsonObject("params")));
+        }
+        result.add("value", results);
+        break;
+      }
+      default:
+        // release, unsubscribe, connect and anything else just succeed
+        break;
+    }
+    result.addProperty("sessionId", sessionId);
+    return result;
+  }
+
+  private static String newObjectId(JsonObject params) {
+    String type = params.get("type").getAsString();
+    String id = UUID.randomUUID() + "_kurento." + type;
+    JsonObject constructorParams = params.getAsJsonObject("constructorParams");
+    if (constructorParams != null && constructorParams.has("mediaPipeline")) {
+      return constructorParams.get("mediaPipeline").getAsString() + "/" + id;
+    }
+    return id;
+  }
+
+  private JsonElement invoke(String operation) {
+    switch (operation) {
+      case "processOffer":
+      case "processAnswer":
+      case "generateOffer":
+      case "getLocalSessionDescriptor":
+      case "getRemoteSessionDescriptor":
+        return new JsonPrimitive(SDP);
+      case "getUsedCpu":
+        return new JsonPrimitive(usedCpu);
+      case "getPipelines":
+      case "getChildren":
+        return new JsonArray();
+      default:
+        return JsonNull.INSTANCE;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.IceCandidate;
+import org.kurento.jsonrpc.JsonUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * JSON encode and decode of the {@code iceCandidate} and stream messages, with
+ * {@link SignalingCodec} and with the Gson trees the handler used before it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignalingCodecBenchmark {
+
+  private static final Gson gson = new Gson();
+
+  private final String iceCandidateFrame = "{\"id\":\"onIceCandidate\",\"candidate\":"
+      + "{\"candidate\":\"candidate:1 1 UDP 2122252543 192.168.1.20 54321 typ host\","
+      + "\"sdpMid\":\"0\",\"sdpMLineIndex\":0}}";
+  private final String streamRequestFrame = "{\"id\":\"streamRequest\",\"stream\":\"stream-0500\","
+      + "\"video\":\"callerVid\",\"sdpOffer\":\"v=0\\r\\no=- 4611731400430051336 2 IN IP4 "
+      + "127.0.0.1\\r\\ns=-\\r\\nt=0 0\\r\\na=group:BUNDLE 0 1\\r\\n\"}";
+  private final List<IceCandidate> candidates = Collections.singletonList(new IceCandidate(
+      "candidate:1 1 UDP 2122252543 192.168.1.20 54321 typ host", "0", 0));
+  private final String sdpAnswer = "v=0\r\no=- 3812923791 3812923791 IN IP4 0.0.0.0\r\ns=Kurento"
+      + "\r\nc=IN IP4 0.0.0.0\r\nt=0 0\r\na=group:BUNDLE 0 1\r\n";
+
+  @Benchmark
+  public List<IceCandidate> decodeIceCandidateCodec() {
+    return SignalingCodec.decode(iceCandidateFrame).getCandidates();
+  }
+
+  @Benchmark
+  public IceCandidate decodeIceCandidateGson() {
+    JsonObject message = gson.fromJson(iceCandidateFrame, JsonObject.class);
+    JsonObject candidate = message.get("candidate").getAsJsonObject();
+    return new IceCandidate(candidate.get("candidate").getAsString(),
+        candidate.get("sdpMid").getAsString(), candidate.get("sdpMLineIndex").getAsInt());
+  }
+
+  @Benchmark
+  public String encodeIceCandidateCodec() {
+    return SignalingCodec.encodeCandidates(null, candidates).getPayload();
+  }
+
+  @Benchmark
+  public String encodeIceCandidateGson() {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "iceCandidate");
+    response.add("candidate", JsonUtils.toJsonObject(candidates.get(0)));
+    return response.toString();
+  }
+
+  @Benchmark
+  public String decodeStreamRequestCodec() {
+    return SignalingCodec.decode(streamRequestFrame).getSdpOffer();
+  }
+
+  @Benchmark
+  public String decodeStreamRequestGson() {
+    return gson.fromJson(streamRequestFrame, JsonObject.class).get("sdpOffer").getAsString();
+  }
+
+  @Benchmark
+  public String encodeStreamResponse() {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "streamResponse");
+    response.addProperty("response", "accepted");
+    response.addProperty("video", "callerVid");
+    response.addProperty("sdpAnswer", sdpAnswer);
+    return response.toString();
+  }
+}
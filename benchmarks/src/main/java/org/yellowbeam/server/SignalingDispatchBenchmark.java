@@ -0,0 +1,159 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.WebRtcEndpoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Cost of handling one signaling message in {@link CallHandler#handleTextMessage}, from the raw
+ * frame to the response being queued, for each message id. Messages run inline on the calling
+ * thread and the media server is a mock in the same process, so only the signaling code and the
+ * Kurento client are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignalingDispatchBenchmark {
+
+  private static final String CANDIDATE = "{\"candidate\":\"candidate:1 1 UDP 2122252543 "
+      + "192.168.1.20 54321 typ host\",\"sdpMid\":\"0\",\"sdpMLineIndex\":0}";
+
+  // "register" measures the rejection of an already registered name, registering new users is
+  // covered by UserRegistryBenchmark
+  @Param({ "onIceCandidate", "iceCandidates", "register", "discoverStreams", "listStreams" })
+  public String id;
+
+  private final AtomicLong sent = new AtomicLong();
+  private CallHandler handler;
+  private SignalingExecutor signalingExecutor;
+  private OutboundSessions outboundSessions;
+  private IceCandidateBatcher iceCandidateBatcher;
+  private StreamDirectoryPublisher streamDirectoryPublisher;
+  private PipelinePool pipelinePool;
+  private AdmissionController admissionController;
+  private WebSocketSession session;
+  private TextMessage message;
+
+  @Setup
+  public void setup() throws Exception {
+    UserRegistry registry = new UserRegistry();
+    StreamDirectory streamDirectory = new StreamDirectory(1000);
+    signalingExecutor = new SignalingExecutor(false, 1, 64);
+    outboundSessions = new OutboundSessions(1, 1 << 20,
+        QueuedWebSocketSession.OverflowPolicy.DROP_OLDEST_CANDIDATE);
+    iceCandidateBatcher = new IceCandidateBatcher(20);
+    streamDirectoryPublisher = new StreamDirectoryPublisher(streamDirectory, 500);
+
+    handler = new CallHandler();
+    Stubs.inject(handler, "registry", registry);
+    Stubs.inject(handler, "signalingExecutor", signalingExecutor);
+    Stubs.inject(handler, "outboundSessions", outboundSessions);
+    Stubs.inject(handler, "iceCandidateBatcher", iceCandidateBatcher);
+    Stubs.inject(handler, "streamDirectory", streamDirectory);
+    Stubs.inject(handler, "streamDirectoryPublisher", streamDirectoryPublisher);
+    Stubs.inject(handler, "bitrateLadder", BitrateLadder.parse(""));
+    Stubs.inject(handler, "recordingDir", "");
+
+    KurentoClient kurento = Stubs.kurentoClient();
+    MediaServerPool mediaServerPool = new MediaServerPool(Collections.singletonList("local"),
+        url -> kurento, PlacementPolicy.named("least-pipelines"), 0);
+    pipelinePool = new PipelinePool(mediaServerPool, 0, 0);
+    admissionController = new AdmissionController(0, 0, 0, 0, 0, 0);
+    Stubs.inject(handler, "admission", admissionController);
+    Stubs.inject(handler, "metrics", new SignalingMetrics(new SimpleMeterRegistry(), registry,
+        outboundSessions, pipelinePool, mediaServerPool, admissionController));
+    Stubs.inject(handler, "tracer", new SetupTracer(null));
+    Stubs.inject(handler, "state", new InMemorySignalingState());
+    handler.init();
+    MediaServer server = mediaServerPool.getServers().get(0);
+    for (int i = 0; i < 1000; i++) {
+      UserSession caller = new UserSession(Stubs.session("caller" + i, sent), "caller" + i);
+      UserSession callee = new UserSession(Stubs.session("callee" + i, sent), "callee" + i);
+      StreamPipeline pipeline = new StreamPipeline(server, caller, callee);
+      pipeline.setStreamName(String.format("stream-%04d", i));
+      streamDirectory.add(pipeline.getStream(), pipeline);
+    }
+
+    session = Stubs.session("bench", sent);
+    handler.afterConnectionEstablished(session);
+    handler.handleTextMessage(session, new TextMessage("{\"id\":\"register\",\"name\":\"bench\"}"));
+    registry.getByName("bench").setWebRtcEndpoint(
+        new WebRtcEndpoint.Builder(kurento.createMediaPipeline()).build(), kurento);
+
+    switch (id) {
+      case "onIceCandidate":
+        message = new TextMessage("{\"id\":\"onIceCandidate\",\"candidate\":" + CANDIDATE + "}");
+        break;
+      case "iceCandidates":
+        message = new TextMessage("{\"id\":\"iceCandidates\",\"candidates\":[" + CANDIDATE + ","
+            + CANDIDATE + "," + CANDIDATE + "," + CANDIDATE + "]}");
+        break;
+      case "register":
+        message = new TextMessage("{\"id\":\"register\",\"name\":\"bench\"}");
+        break;
+      case "discoverStreams":
+        message = new TextMessage("{\"id\":\"discoverStreams\",\"stream\":\"stream-0500\"}");
+        break;
+      case "listStreams":
+        message = new TextMessage("{\"id\":\"listStreams\",\"query\":\"stream-05\","
+            + "\"match\":\"prefix\",\"limit\":20}");
+        break;
+      default:
+        throw new IllegalArgumentException(id);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    signalingExecutor.shutdown();
+    outboundSessions.shutdown();
+    iceCandidateBatcher.shutdown();
+    streamDirectoryPublisher.shutdown();
+    pipelinePool.shutdown();
+    admissionController.shutdown();
+  }
+
+  @Benchmark
+  public void handleTextMessage() throws Exception {
+    handler.handleTextMessage(session, message);
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many call setups at once on the {@link SignalingExecutor}, run on the fixed pool of platform
+ * threads or on virtual threads. Each session builds a pipeline with two connected endpoints and
+ * answers an offer, against a mock media server that blocks every request for a fixed latency, as
+ * the Kurento client does while it waits for the real one. Each invocation is one wave of setups,
+ * so the score is the time the last of them takes to finish.
+ *
+ * Virtual threads need the benchmarks to run on Java 21 or later; on older JVMs both modes use
+ * the platform pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignalingExecutorBenchmark {
+
+  private static final String SDP_OFFER = "v=0\r\no=- 0 0 IN IP4 0.0.0.0\r\ns=-\r\nt=0 0\r\n";
+
+  @Param({ "platform", "virtual" })
+  public String threads;
+
+  @Param({ "100", "1000" })
+  public int sessions;
+
+  @Param({ "2" })
+  public long latencyMillis;
+
+  private SignalingExecutor executor;
+  private KurentoClient kurento;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    executor = new SignalingExecutor(true, "virtual".equals(threads), 16, 64);
+    kurento = Stubs.kurentoClient(latencyMillis);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public void concurrentCallSetups() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(sessions);
+    for (int i = 0; i < sessions; i++) {
+      executor.execute("session-" + i, () -> {
+        try {
+          MediaPipeline pipeline = kurento.createMediaPipeline();
+          WebRtcEndpoint caller = new WebRtcEndpoint.Builder(pipeline).build();
+          WebRtcEndpoint callee = new WebRtcEndpoint.Builder(pipeline).build();
+          caller.connect(callee);
+          callee.connect(caller);
+          caller.processOffer(SDP_OFFER);
+          pipeline.release();
+        } finally {
+          done.countDown();
+        }
+      });
+    }
+    done.await();
+  }
+}
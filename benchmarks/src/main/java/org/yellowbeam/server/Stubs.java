@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * In-process replacements for the media server and the WebSocket transport, so the benchmarks
+ * measure only the signaling code. The Kurento client talks to a mock media server in the same
+ * process, and WebSocket sessions discard what is sent to them.
+ */
+final class Stubs {
+
+  private Stubs() {
+  }
+
+  /**
+   * @return a client of an in-process {@link MockMediaServerHandler}
+   */
+  static KurentoClient kurentoClient() {
+    return kurentoClient(0);
+  }
+
+  /**
+   * @param latencyMillis time every request blocks the calling thread before it is answered
+   * @return a client of an in-process {@link MockMediaServerHandler}
+   */
+  static KurentoClient kurentoClient(long latencyMillis) {
+    return KurentoClient.createFromJsonRpcClient(
+        new JsonRpcClientLocal(new MockMediaServerHandler(latencyMillis)));
+  }
+
+  /**
+   * @param sent counter of the messages sent through the session
+   * @return an open WebSocket session that discards whatever is sent to it
+   */
+  static WebSocketSession session(final String id, final AtomicLong sent) {
+    final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    return (WebSocketSession) Proxy.newProxyInstance(Stubs.class.getClassLoader(),
+        new Class<?>[] { WebSocketSession.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            Object result = objectMethod(proxy, method, args);
+            if (result != null) {
+              return result;
+            }
+            switch (method.getName()) {
+              case "getId":
+                return id;
+              case "isOpen":
+                return true;
+              case "getAttributes":
+                return attributes;
+              case "sendMessage":
+                sent.incrementAndGet();
+                return null;
+              default:
+                return defaultValue(method.getReturnType());
+            }
+          }
+        });
+  }
+
+  /**
+   * Sets a field normally injected by Spring.
+   */
+  static void inject(Object target, String name, Object value) {
+    try {
+      Field field = target.getClass().getDeclaredField(name);
+      field.setAccessible(true);
+      field.set(target, value);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Cannot inject " + name, e);
+    }
+  }
+
+  private static Object objectMethod(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "equals":
+        return args != null && args.length == 1 ? proxy == args[0] : null;
+      case "hashCode":
+        return method.getParameterCount() == 0 ? System.identityHashCode(proxy) : null;
+      case "toString":
+        return method.getParameterCount() == 0 ? "stub@" + System.identityHashCode(proxy) : null;
+      default:
+        return null;
+    }
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    } else if (type == double.class) {
+      return 0d;
+    } else if (type == float.class) {
+      return 0f;
+    } else if (type == short.class) {
+      return (short) 0;
+    } else if (type == byte.class) {
+      return (byte) 0;
+    } else if (type == char.class) {
+      return (char) 0;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link UserRegistry} under contention: lookups, register and remove cycles, threads racing for
+ * the same name, call state changes, and a mix of lookups and changes, on a registry already
+ * holding many users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserRegistryBenchmark {
+
+  @Param({ "10000", "100000" })
+  public int users;
+
+  private final AtomicLong sent = new AtomicLong();
+  private UserRegistry registry;
+  private String[] names;
+  private UserSession[] sessions;
+
+  @Setup
+  public void setup() {
+    registry = new UserRegistry();
+    names = new String[users];
+    sessions = new UserSession[users];
+    for (int i = 0; i < users; i++) {
+      names[i] = "user" + i;
+      sessions[i] = new UserSession(Stubs.session("session" + i, sent), names[i]);
+      registry.register(sessions[i]);
+    }
+  }
+
+  /**
+   * A user of its own per thread, registered and removed over and over.
+   */
+  @State(Scope.Thread)
+  public static class Newcomer {
+
+    private static final AtomicInteger count = new AtomicInteger();
+
+    private UserSession user;
+    // Same name for every thread, only one of them can hold it at a time
+    private UserSession rival;
+
+    @Setup
+    public void setup(UserRegistryBenchmark benchmark) {
+      int i = count.incrementAndGet();
+      user = new UserSession(Stubs.session("newcomer-session" + i, benchmark.sent),
+          "newcomer" + i);
+      rival = new UserSession(Stubs.session("rival-session" + i, benchmark.sent), "rival");
+    }
+  }
+
+  @Benchmark
+  @Threads(8)
+  public UserSession lookupByName() {
+    return registry.getByName(names[ThreadLocalRandom.current().nextInt(names.length)]);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public UserSession lookupBySession() {
+    return registry.getBySession(
+        sessions[ThreadLocalRandom.current().nextInt(sessions.length)].getSession());
+  }
+
+  @Benchmark
+  @Threads(8)
+  public boolean exists() {
+    return registry.exists(names[ThreadLocalRandom.current().nextInt(names.length)]);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public UserSession registerAndRemove(Newcomer newcomer) {
+    registry.register(newcomer.user);
+    return registry.removeBySession(newcomer.user.getSession());
+  }
+
+  /**
+   * Every thread tries to register the same name, as clients racing for it would.
+   */
+  @Benchmark
+  @Threads(8)
+  public UserSession claimSameName(Newcomer newcomer) {
+    return registry.register(newcomer.rival)
+        ? registry.removeBySession(newcomer.rival.getSession()) : null;
+  }
+
+  /**
+   * Registered users starting and ending calls, as the in call index sees them.
+   */
+  @Benchmark
+  @Threads(8)
+  public boolean enterAndLeaveCall() {
+    UserSession user = sessions[ThreadLocalRandom.current().nextInt(sessions.length)];
+    registry.setInCall(user, true);
+    registry.setInCall(user, false);
+    return registry.isInCall(user);
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(6)
+  public UserSession mixedLookup() {
+    return lookupByName();
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public UserSession mixedRegisterAndRemove(Newcomer newcomer) {
+    return registerAndRemove(newcomer);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.IceCandidate;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.WebRtcEndpoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Remote candidates reaching a {@link UserSession}: buffered before its endpoint exists, flushed
+ * when the endpoint is set, and forwarded one by one or in a transaction afterwards. Also the
+ * state transitions of a call, and the rejection of an answer to a call that is not ringing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserSessionBenchmark {
+
+  private static final int CANDIDATES = 8;
+
+  private final AtomicLong sent = new AtomicLong();
+  private UserSession pending;
+  private UserSession connected;
+  private UserSession caller;
+  private UserSession callee;
+  private WebRtcEndpoint endpoint;
+  private KurentoClient kurento;
+  private List<IceCandidate> candidates;
+
+  @Setup
+  public void setup() {
+    kurento = Stubs.kurentoClient();
+    endpoint = new WebRtcEndpoint.Builder(kurento.createMediaPipeline()).build();
+    pending = new UserSession(Stubs.session("pending", sent), "pending");
+    connected = new UserSession(Stubs.session("connected", sent), "connected");
+    connected.setWebRtcEndpoint(endpoint, kurento);
+    caller = new UserSession(Stubs.session("caller", sent), "caller");
+    callee = new UserSession(Stubs.session("callee", sent), "callee");
+
+    candidates = new ArrayList<>(CANDIDATES);
+    for (int i = 0; i < CANDIDATES; i++) {
+      candidates.add(new IceCandidate("candidate:" + i + " 1 UDP 2122252543 192.168.1.20 "
+          + (50000 + i) + " typ host", "0", 0));
+    }
+  }
+
+  /**
+   * Candidates arriving before the SDP answer, buffered and then flushed to the new endpoint.
+   */
+  @Benchmark
+  public void bufferAndFlush() {
+    for (IceCandidate candidate : candidates) {
+      pending.addCandidate(candidate);
+    }
+    pending.setWebRtcEndpoint(endpoint, kurento);
+    pending.clear();
+  }
+
+  @Benchmark
+  public void addCandidateOneByOne() {
+    for (IceCandidate candidate : candidates) {
+      connected.addCandidate(candidate);
+    }
+  }
+
+  @Benchmark
+  public void addCandidatesInTransaction() {
+    connected.addCandidates(candidates);
+  }
+
+  /**
+   * A call rung, answered, streamed and stopped, without the media work.
+   */
+  @Benchmark
+  public boolean callLifecycle() {
+    boolean ok = caller.startCall("callee", "offer") && callee.ring("caller")
+        && callee.connect("caller") && caller.connect("callee")
+        && caller.transition(UserSession.State.IN_CALL, UserSession.State.STREAMING);
+    caller.clear();
+    callee.clear();
+    return ok;
+  }
+
+  /**
+   * A duplicate answer, found in the wrong state before any request to the media server.
+   */
+  @Benchmark
+  public boolean rejectStaleAnswer() {
+    return connected.connect("caller");
+  }
+}
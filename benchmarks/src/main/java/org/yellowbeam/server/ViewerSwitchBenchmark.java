@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.WebRtcEndpoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A viewer moving between the two videos of a call: a full setup of a new endpoint for the other
+ * video, against feeding the endpoint it already has from the other video. Every request to the
+ * mock media server blocks for the given latency, so the round trips of each path show.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ViewerSwitchBenchmark {
+
+  private static final String OFFER = "v=0\r\no=- 0 0 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n";
+
+  @Param({ "0", "1" })
+  public long latencyMillis;
+
+  private final AtomicLong sent = new AtomicLong();
+  private StreamPipeline pipeline;
+  private String video = "callerVid";
+
+  @Setup
+  public void setup() {
+    KurentoClient kurento = Stubs.kurentoClient(latencyMillis);
+    MediaServerPool servers = new MediaServerPool(Collections.singletonList("local"),
+        url -> kurento, PlacementPolicy.named("least-pipelines"), 0);
+    UserSession caller = new UserSession(Stubs.session("caller", sent), "caller");
+    UserSession callee = new UserSession(Stubs.session("callee", sent), "callee");
+    pipeline = new StreamPipeline(servers.getServers().get(0), caller, callee);
+    pipeline.setStreamName("stream");
+    pipeline.addViewerWebRtcEp("viewer", video).processOffer(OFFER);
+  }
+
+  @TearDown
+  public void tearDown() {
+    pipeline.release();
+  }
+
+  /**
+   * A new endpoint for the other video, replacing the previous one, and its negotiation.
+   */
+  @Benchmark
+  public String fullSetup() {
+    String next = other();
+    pipeline.removeViewer("viewer");
+    WebRtcEndpoint endpoint = pipeline.addViewerWebRtcEp("viewer", next);
+    video = next;
+    String answer = endpoint.processOffer(OFFER);
+    endpoint.gatherCandidates();
+    return answer;
+  }
+
+  @Benchmark
+  public WebRtcEndpoint switchSource() {
+    String next = other();
+    WebRtcEndpoint endpoint = pipeline.switchViewerSource("viewer", video, next);
+    video = next;
+    return endpoint;
+  }
+
+  private String other() {
+    return "callerVid".equals(video) ? "calleeVid" : "callerVid";
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kurento.client.KurentoClient;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public class MediaServerPoolTest {
+
+  private MediaServerPool pool;
+
+  @After
+  public void tearDown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void connectsOncePerServer() {
+    StandInServers standIns = new StandInServers(3);
+    pool = standIns.pool(PlacementPolicy.LEAST_PIPELINES, 0);
+
+    assertEquals(3, standIns.clients.size());
+    for (int i = 0; i < 3; i++) {
+      MediaServer server = pool.getServers().get(i);
+      assertEquals(standIns.urls.get(i), server.getUrl());
+      assertSame(standIns.clients.get(i), server.getClient());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void requiresAServer() {
+    pool = new StandInServers(0).pool(PlacementPolicy.LEAST_PIPELINES, 0);
+  }
+
+  @Test
+  public void callsSpreadOverLeastPipelines() {
+    StandInServers standIns = new StandInServers(3);
+    pool = standIns.pool(PlacementPolicy.LEAST_PIPELINES, 0);
+
+    StreamPipeline[] calls = new StreamPipeline[6];
+    for (int i = 0; i < calls.length; i++) {
+      calls[i] = standIns.call(pool);
+      assertFalse(calls[i].isReleased());
+      // Every server takes a call before any takes a second one
+      assertSame(pool.getServers().get(i % 3), calls[i].getServer());
+    }
+    for (int i = 0; i < 3; i++) {
+      MediaServer server = pool.getServers().get(i);
+      assertEquals(2, server.getPipelineCount());
+      assertEquals(4, server.getEndpointCount());
+      assertEquals(2, server.getOwnedCount());
+      assertTrue(standIns.handlers.get(i).getRequests() > 0);
+    }
+    for (StreamPipeline call : calls) {
+      assertTrue(call.getServer().isOwned(call.getPipelineIds().get(0)));
+    }
+
+    calls[1].release();
+    assertEquals(1, pool.getServers().get(1).getPipelineCount());
+    assertSame(pool.getServers().get(1), standIns.call(pool).getServer());
+  }
+
+  @Test
+  public void viewersCountForLeastEndpoints() {
+    StandInServers standIns = new StandInServers(2);
+    pool = standIns.pool(PlacementPolicy.LEAST_ENDPOINTS, 0);
+
+    StreamPipeline watched = standIns.call(pool);
+    assertSame(pool.getServers().get(0), watched.getServer());
+    watched.addViewerWebRtcEp("viewer1", watched.getVideos().get(0));
+    watched.addViewerWebRtcEp("viewer2", watched.getVideos().get(0));
+    assertEquals(4, pool.getServers().get(0).getEndpointCount());
+
+    StreamPipeline second = standIns.call(pool);
+    assertSame(pool.getServers().get(1), second.getServer());
+    // Two endpoints against four, even though both servers have one pipeline
+    assertSame(pool.getServers().get(1), standIns.call(pool).getServer());
+    // Four endpoints each now, a tie goes to the first server
+    assertSame(pool.getServers().get(0), standIns.call(pool).getServer());
+
+    watched.removeViewer("viewer1");
+    assertEquals(5, pool.getServers().get(0).getEndpointCount());
+  }
+
+  @Test
+  public void callsGoToLeastLoadedServer() throws InterruptedException {
+    StandInServers standIns = new StandInServers(3);
+    standIns.handlers.get(0).setUsedCpu(70f);
+    standIns.handlers.get(1).setUsedCpu(10f);
+    standIns.handlers.get(2).setUsedCpu(40f);
+    pool = standIns.pool(PlacementPolicy.CPU_LOAD, 10);
+
+    awaitLoad(pool.getServers().get(2), 40f);
+    for (int i = 0; i < 3; i++) {
+      assertSame(pool.getServers().get(1), standIns.call(pool).getServer());
+    }
+
+    standIns.handlers.get(1).setUsedCpu(95f);
+    awaitLoad(pool.getServers().get(1), 95f);
+    assertSame(pool.getServers().get(2), standIns.call(pool).getServer());
+  }
+
+  @Test
+  public void unreachableServerIsWorstCandidate() throws InterruptedException {
+    StandInServers standIns = new StandInServers(0);
+    standIns.add(new MockMediaServerHandler(0) {
+      @Override
+      public JsonObject answer(String method, JsonObject params) {
+        JsonElement operation = params != null ? params.get("operation") : null;
+        if (operation != null && "getUsedCpu".equals(operation.getAsString())) {
+          throw new IllegalStateException("Connection refused");
+        }
+        return super.answer(method, params);
+      }
+    });
+    standIns.add(new MockMediaServerHandler(0));
+    standIns.handlers.get(1).setUsedCpu(90f);
+    pool = standIns.pool(PlacementPolicy.CPU_LOAD, 10);
+
+    awaitLoad(pool.getServers().get(0), Float.MAX_VALUE);
+    awaitLoad(pool.getServers().get(1), 90f);
+    assertSame(pool.getServers().get(1), standIns.call(pool).getServer());
+  }
+
+  @Test
+  public void selectSkipsExcludedServers() {
+    StandInServers standIns = new StandInServers(2);
+    pool = standIns.pool(PlacementPolicy.LEAST_PIPELINES, 0);
+    MediaServer first = pool.getServers().get(0);
+    MediaServer second = pool.getServers().get(1);
+    standIns.call(pool);
+
+    assertSame(second, pool.select());
+    assertSame(first, pool.select(Collections.singleton(second)));
+    assertNull(pool.select(Arrays.asList(first, second)));
+  }
+
+  @Test
+  public void pooledPipelinesCountInLoad() throws InterruptedException {
+    StandInServers standIns = new StandInServers(2);
+    pool = standIns.pool(PlacementPolicy.LEAST_PIPELINES, 0);
+    PipelinePool pipelines = new PipelinePool(pool, 1, 60000);
+    try {
+      awaitAvailable(pipelines, 2);
+      for (MediaServer server : pool.getServers()) {
+        assertEquals(1, server.getPipelineCount());
+        assertEquals(2, server.getEndpointCount());
+      }
+
+      StreamPipeline call = pipelines.acquire(standIns.user(), standIns.user());
+      assertEquals(1, pipelines.getHits());
+      awaitAvailable(pipelines, 2);
+      // The call and the pipeline that replaced it in the pool, the taken one counted once
+      assertEquals(2, call.getServer().getPipelineCount());
+      assertEquals(4, call.getServer().getEndpointCount());
+      assertSame(call.getServer() == pool.getServers().get(0) ? pool.getServers().get(1)
+          : pool.getServers().get(0), pool.select());
+    } finally {
+      pipelines.shutdown();
+    }
+  }
+
+  @Test
+  public void shutdownClosesClients() {
+    StandInServers standIns = new StandInServers(2);
+    pool = standIns.pool(PlacementPolicy.LEAST_PIPELINES, 0);
+    List<KurentoClient> clients = standIns.clients;
+
+    pool.shutdown();
+    pool = null;
+
+    for (KurentoClient client : clients) {
+      assertTrue(client.isClosed());
+    }
+  }
+
+  private static void awaitAvailable(PipelinePool pipelines, int expected)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (pipelines.getAvailable() != expected) {
+      if (System.currentTimeMillis() > deadline) {
+        fail(pipelines.getAvailable() + " pooled pipelines, expected " + expected);
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private static void awaitLoad(MediaServer server, float expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (server.getCpuLoad() != expected) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("CPU load of " + server + " is " + server.getCpuLoad() + ", expected " + expected);
+      }
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PlacementPolicyTest {
+
+  private final MediaServer first = new MediaServer("ws://kms-1:8888/kurento", null);
+  private final MediaServer second = new MediaServer("ws://kms-2:8888/kurento", null);
+  private final List<MediaServer> servers = Arrays.asList(first, second);
+
+  @Test
+  public void namedPolicies() {
+    assertSame(PlacementPolicy.LEAST_PIPELINES, PlacementPolicy.named("least-pipelines"));
+    assertSame(PlacementPolicy.LEAST_ENDPOINTS, PlacementPolicy.named("least-endpoints"));
+    assertSame(PlacementPolicy.CPU_LOAD, PlacementPolicy.named("cpu-load"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownPolicyIsRejected() {
+    PlacementPolicy.named("round-robin");
+  }
+
+  @Test
+  public void tiesGoToFirstServer() {
+    assertSame(first, PlacementPolicy.LEAST_PIPELINES.select(servers));
+    assertSame(first, PlacementPolicy.LEAST_ENDPOINTS.select(servers));
+    assertSame(first, PlacementPolicy.CPU_LOAD.select(servers));
+  }
+}
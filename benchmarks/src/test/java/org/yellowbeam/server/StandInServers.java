@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+
+/**
+ * Media servers for placement tests: each one is a {@link MockMediaServerHandler} served in the
+ * same process, reached through the client factory of a {@link MediaServerPool}.
+ */
+class StandInServers {
+
+  final List<String> urls = new ArrayList<>();
+  final List<MockMediaServerHandler> handlers = new ArrayList<>();
+  final List<KurentoClient> clients = new ArrayList<>();
+  private final AtomicLong sent = new AtomicLong();
+  private int users;
+
+  StandInServers(int count) {
+    for (int i = 0; i < count; i++) {
+      add(new MockMediaServerHandler(0));
+    }
+  }
+
+  void add(MockMediaServerHandler handler) {
+    urls.add("ws://kms-" + (urls.size() + 1) + ":8888/kurento");
+    handlers.add(handler);
+  }
+
+  /**
+   * Connects to the stand-in of a URL, as {@link KurentoClient#create} connects to a real server.
+   */
+  KurentoClient connect(String url) {
+    KurentoClient client = KurentoClient.createFromJsonRpcClient(
+        new JsonRpcClientLocal(handlers.get(urls.indexOf(url))));
+    clients.add(client);
+    return client;
+  }
+
+  MediaServerPool pool(PlacementPolicy policy, long loadIntervalMillis) {
+    return new MediaServerPool(urls, this::connect, policy, loadIntervalMillis);
+  }
+
+  /**
+   * Sets up a call the way the call handler does, on the server the pool selects.
+   */
+  StreamPipeline call(MediaServerPool pool) {
+    return new StreamPipeline(pool.select(), user(), user());
+  }
+
+  UserSession user() {
+    String name = "user" + ++users;
+    return new UserSession(Stubs.session(name, sent), name);
+  }
+}
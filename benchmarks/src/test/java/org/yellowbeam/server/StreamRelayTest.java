@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StreamRelayTest {
+
+  private MediaServerPool pool;
+
+  @After
+  public void tearDown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void relayIsReleasedWithItsLastViewer() {
+    StandInServers standIns = new StandInServers(2);
+    pool = standIns.pool(PlacementPolicy.LEAST_PIPELINES, 0);
+    MediaServer origin = pool.getServers().get(0);
+    MediaServer other = pool.getServers().get(1);
+    StreamPipeline stream = standIns.call(pool);
+    assertSame(origin, stream.getServer());
+    stream.enableRelays(pool, 1);
+    String video = stream.getVideos().get(0);
+
+    stream.addViewerWebRtcEp("viewer1", video);
+    assertTrue(stream.getRelays().isEmpty());
+    assertNotNull(stream.addViewerWebRtcEp("viewer2", video));
+    assertEquals(1, stream.getRelays().size());
+    assertSame(other, stream.getRelays().get(0).getServer());
+    assertEquals(1, other.getPipelineCount());
+    assertEquals(2, other.getEndpointCount());
+
+    stream.removeViewer("viewer2");
+    assertTrue(stream.getRelays().isEmpty());
+    assertEquals(0, other.getPipelineCount());
+    assertEquals(0, other.getEndpointCount());
+    // The call endpoints and the first viewer, without the RTP endpoint that fed the relay
+    assertEquals(3, origin.getEndpointCount());
+
+    stream.addViewerWebRtcEp("viewer3", video);
+    assertEquals(1, stream.getRelays().size());
+    assertEquals(1, other.getPipelineCount());
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits how fast viewer endpoints are created, so a crowd joining a stream at once does not
+ * overload the media server. Every new viewer takes a token from a global bucket and one from the
+ * bucket of its stream. Requests that find no token wait in a bounded FIFO queue, are told their
+ * position and estimated wait, and are admitted in order as the buckets refill. Requests that find
+ * the queue full, or wait longer than the maximum, are rejected at once.
+ */
+public class AdmissionController {
+
+  private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+
+  private static final long TICK_MILLIS = 10;
+  private static final long POSITION_INTERVAL_MILLIS = 1000;
+
+  public enum Result {
+    ADMITTED, QUEUED, REJECTED
+  }
+
+  /**
+   * Receives the outcome of a queued request. Callbacks run on the admission thread.
+   */
+  public interface Listener {
+
+    void admitted();
+
+    void waiting(int position, long estimatedWaitMillis);
+
+    void rejected(String reason);
+  }
+
+  private final double rate;
+  private final double streamRate;
+  private final int streamBurst;
+  private final int capacity;
+  private final long maxWaitMillis;
+
+  // Guarded by this
+  private final TokenBucket global;
+  private final Map<String, TokenBucket> streamBuckets = new HashMap<>();
+  private final LinkedHashMap<String, Ticket> waiting = new LinkedHashMap<>();
+  private long positionsSentAt;
+
+  private final AtomicLong admitted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * @param rate viewer endpoints created per second on this node, 0 disables admission control
+   * @param streamRate viewer endpoints created per second for a single stream, 0 for no limit
+   *          besides the global one
+   * @param capacity requests that can wait for a token
+   * @param maxWaitMillis time after which a waiting request is rejected
+   */
+  public AdmissionController(double rate, int burst, double streamRate, int streamBurst,
+      int capacity, long maxWaitMillis) {
+    this.rate = rate;
+    this.streamRate = streamRate > 0 ? streamRate : rate;
+    this.streamBurst = streamRate > 0 ? streamBurst : burst;
+    this.capacity = capacity;
+    this.maxWaitMillis = maxWaitMillis;
+    this.global = new TokenBucket(rate, burst);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "admission");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (rate > 0) {
+      scheduler.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public boolean isEnabled() {
+    return rate > 0;
+  }
+
+  /**
+   * Asks for a viewer endpoint on a stream. When the result is {@link Result#QUEUED} the listener
+   * is told the position of the request now, and later whether it was admitted or rejected.
+   * Otherwise the listener is never called.
+   */
+  public Result admit(String sessionId, String stream, Listener listener) {
+    if (rate <= 0) {
+      admitted.incrementAndGet();
+      return Result.ADMITTED;
+    }
+    Ticket ticket;
+    int position;
+    int streamPosition = 1;
+    synchronized (this) {
+      TokenBucket bucket = streamBucket(stream);
+      if (waiting.isEmpty() && global.hasToken() && bucket.tryAcquire()) {
+        global.tryAcquire();
+        admitted.incrementAndGet();
+        return Result.ADMITTED;
+      }
+      if (waiting.size() >= capacity) {
+        rejected.incrementAndGet();
+        return Result.REJECTED;
+      }
+      ticket = new Ticket(sessionId, stream, listener);
+      waiting.remove(sessionId);
+      for (Ticket queued : waiting.values()) {
+        if (queued.stream.equals(stream)) {
+          streamPosition++;
+        }
+      }
+      waiting.put(sessionId, ticket);
+      position = waiting.size();
+    }
+    listener.waiting(position, estimateWait(position, streamPosition));
+    return Result.QUEUED;
+  }
+
+  /**
+   * Removes the waiting request of a session, if any. Its listener is not called.
+   */
+  public synchronized void cancel(String sessionId) {
+    waiting.remove(sessionId);
+  }
+
+  /**
+   * Forgets a stream that ended, rejecting the requests waiting for it.
+   */
+  public void streamStopped(String stream) {
+    List<Ticket> dropped = new ArrayList<>();
+    synchronized (this) {
+      streamBuckets.remove(stream);
+      for (Iterator<Ticket> it = waiting.values().iterator(); it.hasNext();) {
+        Ticket ticket = it.next();
+        if (ticket.stream.equals(stream)) {
+          it.remove();
+          dropped.add(ticket);
+        }
+      }
+    }
+    for (Ticket ticket : dropped) {
+      notifyRejected(ticket, "Stream ended");
+    }
+  }
+
+  public synchronized int getQueueLength() {
+    return waiting.size();
+  }
+
+  public long getAdmitted() {
+    return admitted.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * @return the time to suggest to a rejected client before it retries
+   */
+  public long getRetryAfterMillis() {
+    return estimateWait(capacity, capacity);
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private TokenBucket streamBucket(String stream) {
+    TokenBucket bucket = streamBuckets.get(stream);
+    if (bucket == null) {
+      bucket = new TokenBucket(streamRate, streamBurst);
+      streamBuckets.put(stream, bucket);
+    }
+    return bucket;
+  }
+
+  private long estimateWait(int position, int streamPosition) {
+    double seconds = Math.max(position / rate, streamPosition / streamRate);
+    return (long) Math.ceil(seconds * 1000);
+  }
+
+  private void tick() {
+    List<Ticket> admittedTickets = new ArrayList<>();
+    List<Ticket> expired = new ArrayList<>();
+    Map<Ticket, Integer> positions = null;
+    synchronized (this) {
+      if (waiting.isEmpty()) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      for (Iterator<Ticket> it = waiting.values().iterator(); it.hasNext();) {
+        Ticket ticket = it.next();
+        if (now - ticket.queuedAt > maxWaitMillis) {
+          it.remove();
+          expired.add(ticket);
+        } else if (!global.hasToken()) {
+          break;
+        } else if (streamBucket(ticket.stream).tryAcquire()) {
+          global.tryAcquire();
+          it.remove();
+          admittedTickets.add(ticket);
+        }
+      }
+      if (now - positionsSentAt >= POSITION_INTERVAL_MILLIS && !waiting.isEmpty()) {
+        positionsSentAt = now;
+        positions = new LinkedHashMap<>();
+        Map<String, Integer> perStream = new HashMap<>();
+        int position = 0;
+        for (Ticket ticket : waiting.values()) {
+          position++;
+          Integer streamPosition = perStream.merge(ticket.stream, 1, Integer::sum);
+          ticket.streamPosition = streamPosition;
+          positions.put(ticket, position);
+        }
+      }
+    }
+
+    admitted.addAndGet(admittedTickets.size());
+    for (Ticket ticket : admittedTickets) {
+      try {
+        ticket.listener.admitted();
+      } catch (RuntimeException e) {
+        log.warn("Admission of session '{}' failed: {}", ticket.sessionId, e.getMessage());
+      }
+    }
+    for (Ticket ticket : expired) {
+      notifyRejected(ticket, "Timed out waiting for the stream");
+    }
+    if (positions != null) {
+      for (Map.Entry<Ticket, Integer> entry : positions.entrySet()) {
+        Ticket ticket = entry.getKey();
+        try {
+          ticket.listener.waiting(entry.getValue(),
+              estimateWait(entry.getValue(), ticket.streamPosition));
+        } catch (RuntimeException e) {
+          log.debug(e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void notifyRejected(Ticket ticket, String reason) {
+    rejected.incrementAndGet();
+    try {
+      ticket.listener.rejected(reason);
+    } catch (RuntimeException e) {
+      log.debug(e.getMessage());
+    }
+  }
+
+  private static class Ticket {
+
+    private final String sessionId;
+    private final String stream;
+    private final Listener listener;
+    private final long queuedAt = System.currentTimeMillis();
+    private int streamPosition;
+
+    Ticket(String sessionId, String stream, Listener listener) {
+      this.sessionId = sessionId;
+      this.stream = stream;
+      this.listener = listener;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fixed set of renditions every stream video is offered in, sorted from the highest bitrate to
+ * the lowest. The first rendition is the publisher video itself, the others are scaled down once
+ * per stream and shared by all the viewers assigned to them.
+ */
+public class BitrateLadder {
+
+  private final List<Rendition> renditions;
+
+  public BitrateLadder(List<Rendition> renditions) {
+    List<Rendition> sorted = new ArrayList<>(renditions);
+    Collections.sort(sorted, (a, b) -> Integer.compare(b.getMaxKbps(), a.getMaxKbps()));
+    this.renditions = Collections.unmodifiableList(sorted);
+  }
+
+  /**
+   * Parses a ladder such as {@code high:1280x720@2000,low:320x180@300}. Each entry is a name, the
+   * frame size and the maximum bitrate in kbps. An empty string gives an empty ladder.
+   */
+  public static BitrateLadder parse(String spec) {
+    List<Rendition> renditions = new ArrayList<>();
+    for (String entry : spec.split(",")) {
+      entry = entry.trim();
+      if (entry.isEmpty()) {
+        continue;
+      }
+      try {
+        int colon = entry.indexOf(':');
+        int x = entry.indexOf('x', colon);
+        int at = entry.indexOf('@', x);
+        renditions.add(new Rendition(entry.substring(0, colon),
+            Integer.parseInt(entry.substring(colon + 1, x)),
+            Integer.parseInt(entry.substring(x + 1, at)),
+            Integer.parseInt(entry.substring(at + 1))));
+      } catch (RuntimeException e) {
+        throw new IllegalArgumentException("Invalid rendition '" + entry + "'", e);
+      }
+    }
+    return new BitrateLadder(renditions);
+  }
+
+  public boolean isEmpty() {
+    return renditions.isEmpty();
+  }
+
+  public List<Rendition> getRenditions() {
+    return renditions;
+  }
+
+  /**
+   * @return the highest rendition that fits in the bandwidth of a viewer, the lowest one if none
+   *         does, or the highest one when the bandwidth is unknown (0 or less)
+   */
+  public Rendition select(int bandwidthKbps) {
+    if (bandwidthKbps <= 0) {
+      return renditions.get(0);
+    }
+    for (Rendition rendition : renditions) {
+      if (rendition.getMaxKbps() <= bandwidthKbps) {
+        return rendition;
+      }
+    }
+    return renditions.get(renditions.size() - 1);
+  }
+
+  public boolean isTop(Rendition rendition) {
+    return renditions.get(0) == rendition;
+  }
+
+  public static class Rendition {
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int maxKbps;
+
+    public Rendition(String name, int width, int height, int maxKbps) {
+      this.name = name;
+      this.width = width;
+      this.height = height;
+      this.maxKbps = maxKbps;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    public int getMaxKbps() {
+      return maxKbps;
+    }
+
+    /**
+     * @return the GStreamer caps the rendition scales its input to
+     */
+    String getCaps() {
+      return "capsfilter caps=video/x-raw,width=" + width + ",height=" + height;
+    }
+  }
+}
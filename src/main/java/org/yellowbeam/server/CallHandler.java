@@ -18,24 +18,32 @@
 package org.yellowbeam.server;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.PostConstruct;
+
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
-import org.kurento.client.KurentoClient;
+import org.kurento.client.Transaction;
 import org.kurento.client.WebRtcEndpoint;
-import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
@@ -49,85 +57,340 @@ import com.google.gson.JsonObject;
 public class CallHandler extends TextWebSocketHandler {
 
   private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
-  private static final Gson gson = new GsonBuilder().create();
+  private static final int MAX_PAGE_SIZE = 50;
 
   private final ConcurrentHashMap<String, StreamPipeline> pipelines = new ConcurrentHashMap<>();  //This one is to atach each user session with a pipeline
   private final ConcurrentHashMap<String, StreamPipeline> streams = new ConcurrentHashMap<>();  //This one ataches eachs pipeline to a stream identifier
+  private final ConcurrentHashMap<String, String> viewing = new ConcurrentHashMap<>();  //This one ataches each viewer session to the stream it watches
+  private final ConcurrentHashMap<String, String> publishing = new ConcurrentHashMap<>();  //This one ataches each extra publisher session to the stream it joined
+  private final ConcurrentHashMap<String, String> hostedOn = new ConcurrentHashMap<>();  //This one ataches each session to the node handling its call or stream, when it is another one
+  private final ConcurrentHashMap<String, Set<String>> forwardedTo = new ConcurrentHashMap<>();  //This one keeps the nodes each session had frames forwarded to
+  private final ConcurrentHashMap<String, RemoteWebSocketSession> remoteSessions = new ConcurrentHashMap<>();  //This one keeps the sessions of other nodes forwarded to this one
+  private final ConcurrentHashMap<String, List<SignalingMessage>> admissionWaiting = new ConcurrentHashMap<>();  //This one holds the messages of each viewer session waiting for admission
 
   @Autowired
-  private KurentoClient kurento;
+  private UserRegistry registry;
 
   @Autowired
-  private UserRegistry registry;
+  private PipelinePool pipelinePool;
+
+  @Autowired
+  private MediaServerPool mediaServerPool;
+
+  @Autowired
+  private StreamDirectory streamDirectory;
+
+  @Autowired
+  private StreamDirectoryPublisher streamDirectoryPublisher;
+
+  @Value("${stream.relay.threshold:0}")
+  private int relayThreshold;
+
+  @Value("${stream.composite:false}")
+  private boolean compositeByDefault;
+
+  @Value("${stream.recording.dir:}")
+  private String recordingDir;
+
+  @Autowired
+  private BitrateLadder bitrateLadder;
+
+  @Autowired
+  private SignalingExecutor signalingExecutor;
+
+  @Autowired
+  private OutboundSessions outboundSessions;
+
+  @Autowired
+  private IceCandidateBatcher iceCandidateBatcher;
+
+  @Autowired
+  private SignalingMetrics metrics;
+
+  @Autowired
+  private SetupTracer tracer;
+
+  @Autowired
+  private SignalingState state;
+
+  @Autowired
+  private AdmissionController admission;
+
+  @PostConstruct
+  public void init() {
+    metrics.monitorCalls(pipelines, streams);
+    state.setReceiver(this::receive);
+  }
 
   @Override
-  public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-    JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
+  public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+    outboundSessions.get(session);
+  }
+
+  @Override
+  public void handleTextMessage(WebSocketSession transportSession, final TextMessage message)
+      throws Exception {
+    // Replies go through the session outbound queue, never straight to the transport
+    final QueuedWebSocketSession session = outboundSessions.get(transportSession);
+    session.touch();
+    boolean queued = signalingExecutor.execute(session.getId(), new Runnable() {
+      @Override
+      public void run() {
+        try {
+          dispatch(session, message);
+        } catch (Throwable t) {
+          log.error("Error handling message from session '{}'", session.getId(), t);
+          closeSession(session, CloseStatus.SERVER_ERROR);
+        }
+      }
+    });
+
+    if (!queued && !signalingExecutor.isClosed(session.getId())) {
+      session.sendMessage(SignalingCodec.TOO_MANY_PENDING);
+    }
+  }
+
+  @Override
+  protected void handlePongMessage(WebSocketSession transportSession, PongMessage message) {
+    QueuedWebSocketSession session = outboundSessions.find(transportSession.getId());
+    if (session != null) {
+      session.touch();
+    }
+  }
+
+  private void dispatch(WebSocketSession session, TextMessage message) throws Exception {
+    long start = System.nanoTime();
+    SignalingMessage signalingMessage = SignalingCodec.decode(message.getPayload());
+    try {
+      String node = hostOf(session, signalingMessage);
+      if (node != null) {
+        forward(node, session, message);
+      } else {
+        dispatch(session, signalingMessage);
+      }
+    } finally {
+      metrics.messageHandled(signalingMessage.getId(), start);
+    }
+  }
+
+  /**
+   * Finds the node a message must be handled by. A session taking part in a call or a stream
+   * hosted by another node is pinned to it, and all its messages are forwarded there until that
+   * node releases it.
+   *
+   * @return ID of the node, or null if the message is handled here
+   */
+  private String hostOf(WebSocketSession session, SignalingMessage message) {
+    if (remoteSessions.containsKey(session.getId())) {
+      return null;  // Already forwarded by the node of the client
+    }
+    String host = hostedOn.get(session.getId());
+    switch (message.getId()) {
+      case "register":
+      case "listStreams":
+      case "subscribeStreams":
+      case "unsubscribeStreams":
+        return null;
+      case "call":
+        String to = message.getTo();
+        if (host == null && to != null && !registry.exists(to)) {
+          host = pin(session, state.getUserNode(to));
+        }
+        return host;
+      case "incomingCallResponse":
+        String from = message.getFrom();
+        if (host == null && from != null && !registry.exists(from)) {
+          host = pin(session, state.getUserNode(from));
+        }
+        return host;
+      case "discoverStreams":
+      case "joinStream":
+      case "streamRequest":
+        String stream = message.getStream();
+        if (host == null && stream != null && !streams.containsKey(stream)) {
+          host = pin(session, state.getStreamNode(stream));
+        }
+        return host;
+      default:
+        return host;
+    }
+  }
+
+  private String pin(WebSocketSession session, String node) {
+    if (node == null || node.equals(state.getNodeId())) {
+      return null;
+    }
+    hostedOn.put(session.getId(), node);
+    return node;
+  }
+
+  private void forward(String node, WebSocketSession session, TextMessage message) {
+    forwardedTo.computeIfAbsent(session.getId(), id -> ConcurrentHashMap.newKeySet()).add(node);
+    UserSession user = registry.getBySession(session);
+    state.send(node, new RoutedMessage(RoutedMessage.Type.FORWARD, state.getNodeId(),
+        session.getId(), user != null ? user.getName() : null, message.getPayload()));
+  }
+
+  /**
+   * Handles a message sent by another signaling node.
+   */
+  private void receive(final RoutedMessage message) {
+    try {
+      switch (message.getType()) {
+        case FORWARD: {
+          RemoteWebSocketSession remote = remoteSessions.computeIfAbsent(
+              RemoteWebSocketSession.idOf(message.getNode(), message.getSessionId()),
+              id -> new RemoteWebSocketSession(state, message.getNode(), message.getSessionId()));
+          WebSocketSession session = outboundSessions.get(remote);
+          if (message.getUserName() != null && registry.getBySession(session) == null) {
+            registry.register(new UserSession(session, message.getUserName()));
+          }
+          handleTextMessage(remote, new TextMessage(message.getPayload()));
+          break;
+        }
+        case DELIVER: {
+          WebSocketSession session = outboundSessions.find(message.getSessionId());
+          if (session != null) {
+            session.sendMessage(new TextMessage(message.getPayload()));
+          }
+          break;
+        }
+        case CLOSED: {
+          RemoteWebSocketSession remote = remoteSessions.get(
+              RemoteWebSocketSession.idOf(message.getNode(), message.getSessionId()));
+          if (remote != null) {
+            remote.close();
+            afterConnectionClosed(remote, CloseStatus.NORMAL);
+          }
+          break;
+        }
+        case RELEASE:
+          hostedOn.remove(message.getSessionId(), message.getNode());
+          break;
+        default:
+          break;
+      }
+    } catch (Exception e) {
+      log.warn("Could not handle {}: {}", message, e.getMessage());
+    }
+  }
+
+  /**
+   * Lets the node of a forwarded session handle its messages again.
+   */
+  private void releaseRemote(String sessionId) {
+    RemoteWebSocketSession remote = remoteSessions.get(sessionId);
+    if (remote != null) {
+      remote.release();
+    }
+  }
+
+  private void dispatch(WebSocketSession session, SignalingMessage signalingMessage)
+      throws Exception {
     UserSession user = registry.getBySession(session);
 
     if (user != null) {
-      log.debug("Incoming message from user '{}': {}", user.getName(), jsonMessage);
+      log.debug("Incoming message from user '{}': {}", user.getName(), signalingMessage);
     } else {
-      log.debug("Incoming message from new user: {}", jsonMessage);
+      log.debug("Incoming message from new user: {}", signalingMessage);
+    }
+
+    // Messages of a viewer waiting for admission are handled once it is admitted, in order
+    List<SignalingMessage> held = admissionWaiting.get(session.getId());
+    if (held != null) {
+      if (!"stop".equals(signalingMessage.getId())) {
+        held.add(signalingMessage);
+        return;
+      }
+      cancelAdmission(session.getId());
     }
 
-    switch (jsonMessage.get("id").getAsString()) {
+    switch (signalingMessage.getId()) {
       case "register":
         try {
-          register(session, jsonMessage);
+          register(session, signalingMessage);
         } catch (Throwable t) {
           handleErrorResponse(t, session, "registerResponse");
         }
         break;
       case "call":
         try {
-          call(user, jsonMessage);
+          call(user, signalingMessage);
         } catch (Throwable t) {
           handleErrorResponse(t, session, "callResponse");
         }
         break;
       case "incomingCallResponse":
-        incomingCallResponse(user, jsonMessage);
+        incomingCallResponse(user, signalingMessage);
         break;
       case "initStream":
         try {
-          initStream(session, jsonMessage);
+          initStream(session, signalingMessage);
         } catch (Throwable t) {
           handleErrorResponse(t, session, "initStreamResponse");
         }
         break;
       case "discoverStreams":
         try {
-          discoverStreams(session, jsonMessage);
+          discoverStreams(session, signalingMessage);
         } catch (Throwable t) {
           handleErrorResponse(t, session, "discoverStreamResponse");
         }
         break;
+      case "listStreams":
+        try {
+          listStreams(session, signalingMessage);
+        } catch (Throwable t) {
+          handleErrorResponse(t, session, "listStreamsResponse");
+        }
+        break;
+      case "subscribeStreams":
+        streamDirectoryPublisher.subscribe(session);
+        break;
+      case "unsubscribeStreams":
+        streamDirectoryPublisher.unsubscribe(session);
+        break;
+      case "joinStream":
+        try {
+          joinStream(user, signalingMessage);
+        } catch (Throwable t) {
+          handleErrorResponse(t, session, "joinStreamResponse");
+        }
+        break;
+      case "leaveStream":
+        leaveStream(session.getId());
+        break;
       case "streamRequest":
         try {
-          streamRequest(session, jsonMessage);
+          requestStream(session, signalingMessage);
         } catch (Throwable t) {
           handleErrorResponse(t, session, "streamResponse");
         }
         break;
       case "viewerResponse":
         try {
-          viewerResponse(user, jsonMessage);
+          viewerResponse(user, signalingMessage);
         } catch (Throwable t) {
           handleErrorResponse(t, session, "streamResponse");
         }
         break;
-      case "onIceCandidate": {
-        JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
-        if (user != null) {
-          IceCandidate cand =
-              new IceCandidate(candidate.get("candidate").getAsString(), candidate.get("sdpMid")
-                  .getAsString(), candidate.get("sdpMLineIndex").getAsInt());
-          user.addCandidate(cand);
+      case "viewerBandwidth":
+        viewerBandwidth(session, signalingMessage);
+        break;
+      case "onIceCandidate":
+      case "iceCandidates": {
+        List<IceCandidate> cands = signalingMessage.getCandidates();
+        String video = signalingMessage.getVideo();
+        if (video != null) {
+          addViewerCandidates(session, video, cands);
+        } else if (user != null) {
+          user.addCandidates(cands);
         }
         break;
       }
       case "stop":
+        stopViewing(session.getId());
+        leaveStream(session.getId());
         stop(session);
         break;
       case "stopStream":
@@ -138,6 +401,73 @@ public class CallHandler extends TextWebSocketHandler {
     }
   }
 
+  /**
+   * Forwards the candidates gathered by an endpoint to the client, coalesced in batches.
+   */
+  private EventListener<IceCandidateFoundEvent> candidateForwarder(
+      final WebSocketSession session) {
+    return new EventListener<IceCandidateFoundEvent>() {
+
+      @Override
+      public void onEvent(IceCandidateFoundEvent event) {
+        iceCandidateBatcher.add(session, null, event.getCandidate());
+      }
+    };
+  }
+
+  /**
+   * Forwards the candidates gathered by a viewer endpoint, tagged with the video it receives at
+   * the time, which changes when the viewer switches videos.
+   */
+  private EventListener<IceCandidateFoundEvent> candidateForwarder(
+      final WebSocketSession session, final StreamViewer viewer, final WebRtcEndpoint endpoint) {
+    return new EventListener<IceCandidateFoundEvent>() {
+
+      @Override
+      public void onEvent(IceCandidateFoundEvent event) {
+        String video = viewer.getVideo(endpoint);
+        if (video != null) {
+          iceCandidateBatcher.add(session, video, event.getCandidate());
+        }
+      }
+    };
+  }
+
+  private void addViewerCandidates(WebSocketSession session, String video,
+      List<IceCandidate> candidates) {
+    String stream = viewing.get(session.getId());
+    StreamPipeline streamPipeline = stream != null ? streams.get(stream) : null;
+    StreamViewer viewer = streamPipeline != null ? streamPipeline.getViewer(session.getId()) : null;
+    if (viewer != null) {
+      video = viewer.resolveVideo(video);
+    }
+    WebRtcEndpoint endpoint = streamPipeline != null
+        ? streamPipeline.getViewerWebRtcEp(session.getId(), video) : null;
+
+    if (endpoint == null) {
+      log.debug("Discarding candidates for unknown viewer endpoint '{}'", video);
+    } else if (candidates.size() == 1) {
+      endpoint.addIceCandidate(candidates.get(0));
+    } else {
+      Transaction tx =
+          streamPipeline.getViewerKurentoClient(session.getId(), video).beginTransaction();
+      for (IceCandidate candidate : candidates) {
+        endpoint.addIceCandidate(candidate, tx);
+      }
+      tx.commit();
+    }
+  }
+
+  private String processOffer(final WebRtcEndpoint endpoint, final String sdpOffer) {
+    return TraceSpan.trace("processOffer",
+        () -> metrics.timeRpc("processOffer", () -> endpoint.processOffer(sdpOffer)));
+  }
+
+  private void gatherCandidates(final WebRtcEndpoint endpoint) {
+    TraceSpan.trace("gatherCandidates",
+        () -> metrics.timeRpc("gatherCandidates", () -> endpoint.gatherCandidates()));
+  }
+
   private void handleErrorResponse(Throwable throwable, WebSocketSession session, String responseId)
       throws IOException {
     stop(session);
@@ -149,17 +479,18 @@ public class CallHandler extends TextWebSocketHandler {
     session.sendMessage(new TextMessage(response.toString()));
   }
 
-  private void register(WebSocketSession session, JsonObject jsonMessage) throws IOException {
-    String name = jsonMessage.getAsJsonPrimitive("name").getAsString();
+  private void register(WebSocketSession session, SignalingMessage message) throws IOException {
+    String name = SignalingMessage.require(message.getName(), "name");
 
     UserSession caller = new UserSession(session, name);
     String responseMsg = "accepted";
     if (name.isEmpty()) {
       responseMsg = "rejected: empty user name";
-    } else if (registry.exists(name)) {
+    } else if (!registry.register(caller)) {
+      responseMsg = "rejected: user '" + name + "' already registered";
+    } else if (!state.registerUser(name)) {
+      registry.removeBySessionId(session.getId());
       responseMsg = "rejected: user '" + name + "' already registered";
-    } else {
-      registry.register(caller);
     }
 
     JsonObject response = new JsonObject();
@@ -168,21 +499,30 @@ public class CallHandler extends TextWebSocketHandler {
     caller.sendMessage(response);
   }
 
-  private void call(UserSession caller, JsonObject jsonMessage) throws IOException {
-    String to = jsonMessage.get("to").getAsString();
-    String from = jsonMessage.get("from").getAsString();
+  private void call(UserSession caller, SignalingMessage message) throws IOException {
+    String to = SignalingMessage.require(message.getTo(), "to");
+    String from = SignalingMessage.require(message.getFrom(), "from");
     JsonObject response = new JsonObject();
 
-    if (registry.exists(to)) {
-      caller.setSdpOffer(jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
-      caller.setCallingTo(to);
+    UserSession callee = registry.getByName(to);
+    if (callee != null) {
+      if (!caller.startCall(to, SignalingMessage.require(message.getSdpOffer(), "sdpOffer"))) {
+        response.addProperty("id", "callResponse");
+        response.addProperty("response", "rejected: user is already in a call");
+        caller.sendMessage(response);
+        return;
+      }
+      if (callee == caller || !callee.ring(caller.getName())) {
+        caller.cancelCall(to);
+        response.addProperty("id", "callResponse");
+        response.addProperty("response", "rejected: user '" + to + "' is busy");
+        caller.sendMessage(response);
+        return;
+      }
 
       response.addProperty("id", "incomingCall");
       response.addProperty("from", from);
-
-      UserSession callee = registry.getByName(to);
       callee.sendMessage(response);
-      callee.setCallingFrom(from);
     } else {
       response.addProperty("id", "callResponse");
       response.addProperty("response", "rejected: user '" + to + "' is not registered");
@@ -191,86 +531,75 @@ public class CallHandler extends TextWebSocketHandler {
     }
   }
 
-  private void incomingCallResponse(final UserSession callee, JsonObject jsonMessage)
+  private void incomingCallResponse(final UserSession callee, SignalingMessage message)
       throws IOException {
-    String callResponse = jsonMessage.get("callResponse").getAsString();
-    String from = jsonMessage.get("from").getAsString();
+    String callResponse = SignalingMessage.require(message.getCallResponse(), "callResponse");
+    String from = SignalingMessage.require(message.getFrom(), "from");
     final UserSession calleer = registry.getByName(from);
+    if (calleer == null || !from.equals(callee.getCallingFrom())
+        || !callee.getName().equals(calleer.getCallingTo())) {
+      // Stale or duplicate answer, the call was given up or already answered
+      log.debug("Discarding answer of '{}' to a call from '{}' that is not ringing",
+          callee.getName(), from);
+      return;
+    }
     String to = calleer.getCallingTo();
 
     if ("accept".equals(callResponse)) {
+      // The caller offer is read before the transition forgets it
+      String callerSdpOffer = calleer.getSdpOffer();
+      if (!callee.connect(from)) {
+        return;
+      }
+      if (!calleer.connect(callee.getName())) {
+        callee.clear();
+        callee.sendMessage(SignalingCodec.STOP_COMMUNICATION);
+        return;
+      }
       log.debug("Accepted call from '{}' to '{}'", from, to);
 
+      TraceSpan trace = tracer.startTrace("callSetup")
+          .setAttribute("session.id", callee.getSessionId())
+          .setAttribute("caller.session.id", calleer.getSessionId());
       StreamPipeline pipeline = null;
       try {
-        pipeline = new StreamPipeline(kurento, calleer, callee);
+        pipeline = TraceSpan.trace("acquirePipeline",
+            () -> metrics.timeRpc("acquirePipeline", () -> pipelinePool.acquire(calleer, callee)));
         pipelines.put(calleer.getSessionId(), pipeline);
         pipelines.put(callee.getSessionId(), pipeline);
+        registry.setInCall(calleer, true);
+        registry.setInCall(callee, true);
 
-        callee.setWebRtcEndpoint(pipeline.getCalleeWebRtcEp());
+        callee.setWebRtcEndpoint(pipeline.getCalleeWebRtcEp(), pipeline.getKurentoClient());
         pipeline.getCalleeWebRtcEp().addIceCandidateFoundListener(
-            new EventListener<IceCandidateFoundEvent>() {
-
-              @Override
-              public void onEvent(IceCandidateFoundEvent event) {
-                JsonObject response = new JsonObject();
-                response.addProperty("id", "iceCandidate");
-                response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-                try {
-                  synchronized (callee.getSession()) {
-                    callee.getSession().sendMessage(new TextMessage(response.toString()));
-                  }
-                } catch (IOException e) {
-                  log.debug(e.getMessage());
-                }
-              }
-            });
+            candidateForwarder(callee.getSession()));
 
-        calleer.setWebRtcEndpoint(pipeline.getCallerWebRtcEp());
+        calleer.setWebRtcEndpoint(pipeline.getCallerWebRtcEp(), pipeline.getKurentoClient());
         pipeline.getCallerWebRtcEp().addIceCandidateFoundListener(
-            new EventListener<IceCandidateFoundEvent>() {
+            candidateForwarder(calleer.getSession()));
 
-              @Override
-              public void onEvent(IceCandidateFoundEvent event) {
-                JsonObject response = new JsonObject();
-                response.addProperty("id", "iceCandidate");
-                response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-                try {
-                  synchronized (calleer.getSession()) {
-                    calleer.getSession().sendMessage(new TextMessage(response.toString()));
-                  }
-                } catch (IOException e) {
-                  log.debug(e.getMessage());
-                }
-              }
-            });
-
-        String calleeSdpOffer = jsonMessage.get("sdpOffer").getAsString();
-        String calleeSdpAnswer = pipeline.generateSdpAnswerForCallee(calleeSdpOffer);
+        String calleeSdpOffer = SignalingMessage.require(message.getSdpOffer(), "sdpOffer");
+        String calleeSdpAnswer = processOffer(pipeline.getCalleeWebRtcEp(), calleeSdpOffer);
         JsonObject startCommunication = new JsonObject();
         startCommunication.addProperty("id", "startCommunication");
         startCommunication.addProperty("sdpAnswer", calleeSdpAnswer);
 
-        synchronized (callee) {
-          callee.sendMessage(startCommunication);
-        }
+        callee.sendMessage(startCommunication);
 
-        pipeline.getCalleeWebRtcEp().gatherCandidates();
+        gatherCandidates(pipeline.getCalleeWebRtcEp());
 
-        String callerSdpOffer = registry.getByName(from).getSdpOffer();
-        String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(callerSdpOffer);
+        String callerSdpAnswer = processOffer(pipeline.getCallerWebRtcEp(), callerSdpOffer);
         JsonObject response = new JsonObject();
         response.addProperty("id", "callResponse");
         response.addProperty("response", "accepted");
         response.addProperty("sdpAnswer", callerSdpAnswer);
 
-        synchronized (calleer) {
-          calleer.sendMessage(response);
-        }
+        calleer.sendMessage(response);
 
-        pipeline.getCallerWebRtcEp().gatherCandidates();
+        gatherCandidates(pipeline.getCallerWebRtcEp());
 
       } catch (Throwable t) {
+        trace.recordError(t);
         log.error(t.getMessage(), t);
 
         if (pipeline != null) {
@@ -279,29 +608,29 @@ public class CallHandler extends TextWebSocketHandler {
 
         pipelines.remove(calleer.getSessionId());
         pipelines.remove(callee.getSessionId());
-
-        JsonObject response = new JsonObject();
-        response.addProperty("id", "callResponse");
-        response.addProperty("response", "rejected");
-        calleer.sendMessage(response);
-
-        response = new JsonObject();
-        response.addProperty("id", "stopCommunication");
-        callee.sendMessage(response);
+        registry.setInCall(calleer, false);
+        registry.setInCall(callee, false);
+        calleer.clear();
+        callee.clear();
+
+        calleer.sendMessage(SignalingCodec.rejected("callResponse"));
+        callee.sendMessage(SignalingCodec.STOP_COMMUNICATION);
+        releaseRemote(calleer.getSessionId());
+      } finally {
+        trace.end();
       }
 
-    } else {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "callResponse");
-      response.addProperty("response", "rejected");
-      calleer.sendMessage(response);
+    } else if (callee.cancelCall(from)) {
+      calleer.cancelCall(callee.getName());
+      calleer.sendMessage(SignalingCodec.rejected("callResponse"));
+      releaseRemote(calleer.getSessionId());
     }
   }
 
-  private void viewerResponse(final UserSession streamer, JsonObject jsonMessage)
+  private void viewerResponse(final UserSession streamer, SignalingMessage message)
       throws IOException {
-    String callResponse = jsonMessage.get("callResponse").getAsString();
-    String from = jsonMessage.get("from").getAsString();
+    String callResponse = SignalingMessage.require(message.getCallResponse(), "callResponse");
+    String from = SignalingMessage.require(message.getFrom(), "from");
     final UserSession calleer = registry.getByName(from);
     String to = calleer.getCallingTo();
 
@@ -310,45 +639,46 @@ public class CallHandler extends TextWebSocketHandler {
       
       StreamPipeline pipeline = pipelines.get(streamer.getSessionId());
 
-      String calleeSdpOffer = jsonMessage.get("sdpOffer").getAsString();
-      String calleeSdpAnswer = pipeline.generateSdpAnswerForCallee(calleeSdpOffer);
+      String calleeSdpOffer = SignalingMessage.require(message.getSdpOffer(), "sdpOffer");
+      String calleeSdpAnswer = processOffer(pipeline.getCalleeWebRtcEp(), calleeSdpOffer);
       JsonObject startCommunication = new JsonObject();
       startCommunication.addProperty("id", "startCommunication");
       startCommunication.addProperty("sdpAnswer", calleeSdpAnswer);
 
-      synchronized (streamer) {
-        streamer.sendMessage(startCommunication);
-      }
+      streamer.sendMessage(startCommunication);
 
-      pipeline.getCalleeWebRtcEp().gatherCandidates();
+      gatherCandidates(pipeline.getCalleeWebRtcEp());
     }
   }
   /**
    * Stream start
    * @param session
-   * @param jsonMessage
+   * @param message
    * @throws IOException
    */
-  private void initStream(final WebSocketSession session, JsonObject jsonMessage) throws IOException {
+  private void initStream(final WebSocketSession session, SignalingMessage message) throws IOException {
 
-    String streamName = jsonMessage.get("stream").getAsString();  //Stream Identifier
+    //Stream Identifier
+    String streamName = SignalingMessage.require(message.getStream(), "stream");
     StreamPipeline streamPipeline = pipelines.get(session.getId());
+    UserSession user = registry.getBySession(session);
 
-    if(registry.getBySession(session) == null){
+    if(user == null){
       JsonObject response = new JsonObject();
       response.addProperty("id", "initStreamResponse");
       response.addProperty("response", "rejected: User is not registered. ");
       session.sendMessage(new TextMessage(response.toString()));
-      log.debug("User '{}' is not registered. ", registry.getBySession(session).getName());
+      log.debug("Session '{}' is not registered. ", session.getId());
 
-    } else if(pipelines == null) {
+    } else if(streamPipeline == null || !startStreaming(streamPipeline)) {
       JsonObject response = new JsonObject();
       response.addProperty("id", "initStreamResponse");
       response.addProperty("response", "rejected: Call is not ready. ");
       session.sendMessage(new TextMessage(response.toString()));
       log.debug(" Call is not ready. ");
 
-    } else if(streams.containsKey(streamName)){
+    } else if(streams.containsKey(streamName) || !state.registerStream(streamName)){
+      stopStreaming(streamPipeline);
       JsonObject response = new JsonObject();
       response.addProperty("id", "initStreamResponse");
       response.addProperty("response", "rejected: Stream name is already on use. ");
@@ -357,28 +687,85 @@ public class CallHandler extends TextWebSocketHandler {
     
     } else {
       streamPipeline.setStreamName(streamName);
+      boolean composite = message.getComposite() != null
+          ? message.getComposite() : compositeByDefault;
+      if (composite) {
+        streamPipeline.enableComposite();
+      }
+      if (!bitrateLadder.isEmpty()) {
+        streamPipeline.setBitrateLadder(bitrateLadder);
+      }
+      if (relayThreshold > 0) {
+        streamPipeline.enableRelays(mediaServerPool, relayThreshold);
+      }
+      String recording = recordingDir.isEmpty() ? null : startRecording(streamPipeline, streamName);
       streams.put(streamName, streamPipeline);
+      registry.setStreaming(streamPipeline.getCaller(), true);
+      registry.setStreaming(streamPipeline.getCallee(), true);
+      streamDirectory.add(streamName, streamPipeline);
+      metrics.streamStarted(streamName, streamPipeline);
       JsonObject response = new JsonObject();
       response.addProperty("id", "initStreamResponse");
       response.addProperty("response", "accepted");
+      if (recording != null) {
+        response.addProperty("recording", recording);
+      }
       session.sendMessage(new TextMessage(response.toString()));
       log.debug("Starting Stream '{}'. ", streamName);
 
     }
   }
 
+  /**
+   * Moves both peers of a call to streaming. Only one stream can be started per call, a second
+   * initStream finds the peers already streaming
+   * @return false if the peers were not in the call
+   */
+  private boolean startStreaming(StreamPipeline pipeline) {
+    if (!pipeline.getCaller().transition(UserSession.State.IN_CALL, UserSession.State.STREAMING)) {
+      return false;
+    }
+    if (!pipeline.getCallee().transition(UserSession.State.IN_CALL, UserSession.State.STREAMING)) {
+      pipeline.getCaller().transition(UserSession.State.STREAMING, UserSession.State.IN_CALL);
+      return false;
+    }
+    return true;
+  }
+
+  private void stopStreaming(StreamPipeline pipeline) {
+    pipeline.getCaller().transition(UserSession.State.STREAMING, UserSession.State.IN_CALL);
+    pipeline.getCallee().transition(UserSession.State.STREAMING, UserSession.State.IN_CALL);
+  }
+
+  /**
+   * Records the videos of a new stream into a directory of its own under the recording directory.
+   * The stream goes on without a recording if the media server cannot make one
+   * @return path the recordings are served at, or null if the stream is not recorded
+   */
+  private String startRecording(StreamPipeline streamPipeline, String streamName) {
+    String path = StreamPipeline.toFileName(streamName) + "/" + System.currentTimeMillis();
+    try {
+      streamPipeline.enableRecording(Paths.get(recordingDir, path).toUri().toString());
+      return "/recordings/" + path + "/";
+    } catch (RuntimeException e) {
+      log.warn("Could not record stream '{}': {}", streamName, e.getMessage());
+      return null;
+    }
+  }
+
   /**
    * A user solicites the avaliable videos on a stream
    * @param session
-   * @param jsonMessage
+   * @param message
    * @throws IOException
    */
-  private void discoverStreams(final WebSocketSession session, JsonObject jsonMessage) throws IOException {
+  private void discoverStreams(final WebSocketSession session, SignalingMessage message) throws IOException {
 
-    String stream = jsonMessage.get("stream").getAsString();  //Stream Identifier
+    String stream = SignalingMessage.require(message.getStream(), "stream");  //Stream Identifier
+    StreamDirectory.StreamInfo info = streamDirectory.get(stream);
 
     //Check if the stream exists
-    if(!streams.containsKey(stream)) {
+    if(info == null) {
       JsonObject response = new JsonObject();
       response.addProperty("id", "discoverStreamResponse");
       response.addProperty("response", "rejected");
@@ -389,28 +776,314 @@ public class CallHandler extends TextWebSocketHandler {
       JsonObject response = new JsonObject();
       response.addProperty("id", "discoverStreamResponse");
       response.addProperty("response", "accepted");
-      JsonArray vids = new JsonArray();
-      vids.add("callerVid");
-      vids.add("calleeVid");
-      response.add("videos", vids);
-      
-      
-      synchronized (session) {
-        session.sendMessage(new TextMessage(response.toString()));
+      response.add("videos", info.toJson().get("videos"));
+      session.sendMessage(new TextMessage(response.toString()));
+
+    }
+  }
+
+  /**
+   * A registered user publishes its own video into a live stream, next to the call peers
+   * @param user
+   * @param message
+   * @throws IOException
+   */
+  private void joinStream(final UserSession user, SignalingMessage message) throws IOException {
+
+    String stream = SignalingMessage.require(message.getStream(), "stream");  //Stream Identifier
+    StreamPipeline streamPipeline = streams.get(stream);
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "joinStreamResponse");
+
+    if (user == null) {
+      throw new IllegalStateException("User is not registered");
+    } else if (streamPipeline == null) {
+      response.addProperty("response", "rejected");
+      response.addProperty("message", "Unkown Stream Identifier");
+      user.sendMessage(response);
+      return;
+    } else if (user.getState() != UserSession.State.IDLE
+        && !publishing.containsKey(user.getSessionId())) {
+      response.addProperty("response", "rejected");
+      response.addProperty("message", "User is already in a call");
+      user.sendMessage(response);
+      return;
+    }
+
+    String video = user.getName();
+    TraceSpan trace = tracer.startTrace("joinStream")
+        .setAttribute("session.id", user.getSessionId()).setAttribute("stream", stream)
+        .setAttribute("video", video);
+    try {
+      WebRtcEndpoint source = streamPipeline.addSource(video);
+      if (source == null) {
+        response.addProperty("response", "rejected");
+        response.addProperty("message", "Video name is already on use");
+        user.sendMessage(response);
+        return;
+      }
+      leaveStream(user.getSessionId());
+      if (!user.transition(UserSession.State.IDLE, UserSession.State.STREAMING)) {
+        // Another message of the user got it into a call meanwhile
+        streamPipeline.removeSource(video);
+        response.addProperty("response", "rejected");
+        response.addProperty("message", "User is already in a call");
+        user.sendMessage(response);
+        return;
+      }
+      publishing.put(user.getSessionId(), stream);
+      registry.setStreaming(user, true);
+      streamDirectory.invalidate();
+
+      user.setWebRtcEndpoint(source, streamPipeline.getKurentoClient());
+      source.addIceCandidateFoundListener(candidateForwarder(user.getSession()));
+      String sdpAnswer =
+          processOffer(source, SignalingMessage.require(message.getSdpOffer(), "sdpOffer"));
+
+      response.addProperty("response", "accepted");
+      response.addProperty("video", video);
+      response.addProperty("sdpAnswer", sdpAnswer);
+      user.sendMessage(response);
+      gatherCandidates(source);
+      log.debug("User '{}' joined stream '{}'", video, stream);
+    } catch (IOException | RuntimeException e) {
+      trace.recordError(e);
+      throw e;
+    } finally {
+      trace.end();
+    }
+  }
+
+  /**
+   * A publisher added with joinStream stops sending its video
+   * @param session
+   */
+  private void leaveStream(String sessionId) {
+    String stream = publishing.remove(sessionId);
+    StreamPipeline pipeline = stream != null ? streams.get(stream) : null;
+    UserSession user = registry.getBySessionId(sessionId);
+    if (pipeline != null && user != null && pipeline.removeSource(user.getName())) {
+      streamDirectory.invalidate();
+      log.debug("User '{}' left stream '{}'", user.getName(), stream);
+    }
+    if (stream != null && user != null) {
+      registry.setStreaming(user, false);
+      user.clear();
+    }
+    if (stream != null) {
+      releaseRemote(sessionId);
+    }
+  }
+
+  /**
+   * A user browses the live streams, one page at a time
+   * @param session
+   * @param message
+   * @throws IOException
+   */
+  private void listStreams(final WebSocketSession session, SignalingMessage message) throws IOException {
+
+    String query = message.getQuery() != null ? message.getQuery() : "";
+    boolean substring = "substring".equals(message.getMatch());
+    String cursor = message.getCursor();
+    int limit = message.getLimit() != null ? message.getLimit() : MAX_PAGE_SIZE;
+    limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+    StreamDirectory.Page page = streamDirectory.search(query, substring, cursor, limit);
+    JsonArray list = new JsonArray();
+    for (StreamDirectory.StreamInfo info : page.getStreams()) {
+      list.add(info.toJson());
+    }
+
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "listStreamsResponse");
+    response.addProperty("response", "accepted");
+    response.add("streams", list);
+    if (page.getNextCursor() != null) {
+      response.addProperty("nextCursor", page.getNextCursor());
+    }
+    session.sendMessage(new TextMessage(response.toString()));
+  }
+
+  /**
+   * A viewer asks for a stream video. When endpoints are being created faster than the admission
+   * rates allow, the request waits in the admission queue and the viewer is told its position
+   * @param session
+   * @param message
+   * @throws IOException
+   */
+  private void requestStream(final WebSocketSession session, SignalingMessage message)
+      throws IOException {
+    final String video = message.getVideo();
+    String stream = message.getStream();
+    StreamPipeline streamPipeline = stream != null ? streams.get(stream) : null;
+    if (streamPipeline == null || !streamPipeline.hasVideo(video)) {
+      streamRequest(session, message);  // Rejected without taking a token
+      return;
+    }
+    UserSession user = registry.getBySession(session);
+    if (user != null && user.getState() != UserSession.State.IDLE
+        && user.getState() != UserSession.State.VIEWING) {
+      session.sendMessage(streamRejected(video, "User is already in a call", 0));
+      return;
+    }
+    String replaces = message.getReplaces();
+    if (replaces != null) {
+      if (stream.equals(viewing.get(session.getId()))
+          && streamPipeline.getViewerWebRtcEp(session.getId(), replaces) != null) {
+        switchVideo(session, streamPipeline, replaces, video);  // No new endpoint, no token
+      } else {
+        // A switch has no offer to fall back to a full setup with
+        session.sendMessage(streamRejected(video, "Video to replace is not received", 0));
+      }
+      return;
+    }
+
+    final String sessionId = session.getId();
+    admissionWaiting.put(sessionId, Collections.synchronizedList(new ArrayList<>()));
+    AdmissionController.Result result = admission.admit(sessionId, stream,
+        new AdmissionController.Listener() {
+
+          @Override
+          public void admitted() {
+            boolean queued = signalingExecutor.execute(sessionId, () -> {
+              if (admissionWaiting.containsKey(sessionId)) {
+                try {
+                  streamRequest(session, message);
+                } catch (Throwable t) {
+                  log.error(t.getMessage(), t);
+                  sendQuietly(session, streamRejected(video, t.getMessage(), 0));
+                }
+                replayHeld(session);
+              }
+            });
+            if (!queued) {
+              admissionWaiting.remove(sessionId);
+            }
+          }
+
+          @Override
+          public void waiting(int position, long estimatedWaitMillis) {
+            JsonObject queuedMessage = new JsonObject();
+            queuedMessage.addProperty("id", "streamQueued");
+            queuedMessage.addProperty("video", video);
+            queuedMessage.addProperty("position", position);
+            queuedMessage.addProperty("estimatedWaitMs", estimatedWaitMillis);
+            sendQuietly(session, new TextMessage(queuedMessage.toString()));
+          }
+
+          @Override
+          public void rejected(String reason) {
+            sendQuietly(session, streamRejected(video, reason, admission.getRetryAfterMillis()));
+            signalingExecutor.execute(sessionId, () -> replayHeld(session));
+          }
+        });
+
+    switch (result) {
+      case ADMITTED:
+        admissionWaiting.remove(sessionId);
+        streamRequest(session, message);
+        break;
+      case REJECTED:
+        admissionWaiting.remove(sessionId);
+        session.sendMessage(streamRejected(video, "Server busy", admission.getRetryAfterMillis()));
+        log.debug("Viewer of stream '{}' rejected, admission queue is full", stream);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * A viewer receiving a video of the stream asks for another one in its place. The endpoint it
+   * already has is fed from the new video, so neither a new offer nor new ICE candidates are needed
+   * @param session
+   * @param streamPipeline
+   * @param previous video the viewer stops receiving
+   * @param video
+   * @throws IOException
+   */
+  private void switchVideo(WebSocketSession session, final StreamPipeline streamPipeline,
+      final String previous, final String video) throws IOException {
+    final String sessionId = session.getId();
+    TraceSpan trace = tracer.startTrace("viewerSwitch").setAttribute("session.id", sessionId)
+        .setAttribute("stream", streamPipeline.getStream()).setAttribute("video", video)
+        .setAttribute("replaces", previous);
+    try {
+      WebRtcEndpoint endpoint = TraceSpan.trace("switchViewerSource",
+          () -> metrics.timeRpc("switchViewerSource",
+              () -> streamPipeline.switchViewerSource(sessionId, previous, video)));
+      if (endpoint == null) {
+        session.sendMessage(streamRejected(video, "Video is already received", 0));
+        return;
       }
+      JsonObject response = new JsonObject();
+      response.addProperty("id", "streamResponse");
+      response.addProperty("response", "accepted");
+      response.addProperty("video", video);
+      response.addProperty("replaces", previous);
+      session.sendMessage(new TextMessage(response.toString()));
+      log.debug("Viewer switched from vid: '{}' to vid: '{}'", previous, video);
+    } catch (IOException | RuntimeException e) {
+      trace.recordError(e);
+      throw e;
+    } finally {
+      trace.end();
+    }
+  }
+
+  private TextMessage streamRejected(String video, String reason, long retryAfterMillis) {
+    JsonObject response = new JsonObject();
+    response.addProperty("id", "streamResponse");
+    response.addProperty("response", "rejected");
+    response.addProperty("message", reason);
+    response.addProperty("video", video);
+    if (retryAfterMillis > 0) {
+      response.addProperty("retryAfterMs", retryAfterMillis);
+    }
+    return new TextMessage(response.toString());
+  }
+
+  /**
+   * Handles the messages a viewer sent while it was waiting for admission.
+   */
+  private void replayHeld(WebSocketSession session) {
+    List<SignalingMessage> held = admissionWaiting.remove(session.getId());
+    if (held == null) {
+      return;
+    }
+    for (SignalingMessage message : held) {
+      try {
+        dispatch(session, message);
+      } catch (Exception e) {
+        log.error("Error handling message from session '{}'", session.getId(), e);
+      }
+    }
+  }
 
+  private void cancelAdmission(String sessionId) {
+    if (admissionWaiting.remove(sessionId) != null) {
+      admission.cancel(sessionId);
+    }
+  }
+
+  private void sendQuietly(WebSocketSession session, TextMessage message) {
+    try {
+      session.sendMessage(message);
+    } catch (IOException e) {
+      log.debug(e.getMessage());
     }
   }
 
   /**
    * A user entabloishes a conection to a stream
    * @param session
-   * @param jsonMessage
+   * @param message
    */
-  private void streamRequest(final WebSocketSession session, JsonObject jsonMessage) throws IOException{
+  private void streamRequest(final WebSocketSession session, SignalingMessage message) throws IOException{
 
-    String stream = jsonMessage.get("stream").getAsString();  //Stream Identifier
-    String video = jsonMessage.get("video").getAsString();
+    String stream = SignalingMessage.require(message.getStream(), "stream");  //Stream Identifier
+    String video = SignalingMessage.require(message.getVideo(), "video");
 
     //Check if the stream exists
     if(!streams.containsKey(stream)) {
@@ -420,7 +1093,7 @@ public class CallHandler extends TextWebSocketHandler {
       response.addProperty("message", "Unkown Stream Identifier");
       session.sendMessage(new TextMessage(response.toString()));
 
-    } else if(!video.equals("callerVid") && !video.equals("calleeVid")) {
+    } else if(!streams.get(stream).hasVideo(video)) {
       JsonObject response = new JsonObject();
       response.addProperty("id", "streamResponse");
       response.addProperty("response", "rejected");
@@ -431,99 +1104,333 @@ public class CallHandler extends TextWebSocketHandler {
       StreamPipeline streamPipeline = streams.get(stream);
       String sessionId = session.getId();
 
-      WebRtcEndpoint vRtcEndpoint = streamPipeline.addViewerWebRtcEp(sessionId);
-
-      vRtcEndpoint.addIceCandidateFoundListener(new EventListener<IceCandidateFoundEvent>() {
-
-        @Override
-        public void onEvent(IceCandidateFoundEvent event) {
-          JsonObject response = new JsonObject();
-          response.addProperty("id", "iceCandidate");
-          response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-          try {
-            synchronized (session) {
-              session.sendMessage(new TextMessage(response.toString()));
-            }
-          } catch (IOException e) {
-            log.debug(e.getMessage());
-          }
-        }
-      });
+      String previous = viewing.put(sessionId, stream);
+      if (previous != null && !previous.equals(stream) && streams.containsKey(previous)) {
+        streams.get(previous).removeViewer(sessionId);
+      }
+      // Unregistered viewers are only tracked by the viewing map
+      UserSession user = registry.getBySessionId(sessionId);
+      if (user != null) {
+        user.transition(UserSession.State.IDLE, UserSession.State.VIEWING);
+      }
 
-      System.out.println("Recieved: " + video);
-      //On future the diferent videos will be maped on a HashMap<String, WebRtcEndPoint>
-      if(video.equals("callerVid")){
-        streamPipeline.getCallerWebRtcEp().connect(vRtcEndpoint);
+      int bandwidth = message.getBandwidth();
+      TraceSpan trace = tracer.startTrace("viewerSetup").setAttribute("session.id", sessionId)
+          .setAttribute("stream", stream).setAttribute("video", video)
+          .setAttribute("bandwidth", bandwidth);
+      try {
+        WebRtcEndpoint vRtcEndpoint = TraceSpan.trace("addViewerEndpoint",
+            () -> metrics.timeRpc("addViewerEndpoint",
+                () -> streamPipeline.addViewerWebRtcEp(sessionId, video, bandwidth)));
 
-      } else {
-        streamPipeline.getCalleeWebRtcEp().connect(vRtcEndpoint);
-      }
+        vRtcEndpoint.addIceCandidateFoundListener(candidateForwarder(session,
+            streamPipeline.getViewer(sessionId), vRtcEndpoint));
 
-      String sdpOffer = jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString();
-      String sdpAnswer = vRtcEndpoint.processOffer(sdpOffer);
+        String sdpOffer = SignalingMessage.require(message.getSdpOffer(), "sdpOffer");
+        String sdpAnswer = processOffer(vRtcEndpoint, sdpOffer);
 
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "streamResponse");
-      response.addProperty("response", "accepted");
-      response.addProperty("sdpAnswer", sdpAnswer);
+        JsonObject response = new JsonObject();
+        response.addProperty("id", "streamResponse");
+        response.addProperty("response", "accepted");
+        response.addProperty("video", video);
+        response.addProperty("sdpAnswer", sdpAnswer);
 
-      synchronized (session) {
         session.sendMessage(new TextMessage(response.toString()));
+        gatherCandidates(vRtcEndpoint);
+      } catch (IOException | RuntimeException e) {
+        trace.recordError(e);
+        throw e;
+      } finally {
+        trace.end();
       }
-      vRtcEndpoint.gatherCandidates();
       log.debug("Viewer started viewing the vid: '{}' stream: '{}' ", video, stream);
     }
       
   }
 
+  /**
+   * A viewer reports its available bandwidth, it may be moved to another rendition
+   * @param session
+   * @param message
+   */
+  private void viewerBandwidth(WebSocketSession session, SignalingMessage message) {
+    String stream = viewing.get(session.getId());
+    StreamPipeline pipeline = stream != null ? streams.get(stream) : null;
+    if (pipeline != null) {
+      pipeline.switchRendition(session.getId(), SignalingMessage.require(message.getVideo(),
+          "video"), message.getBandwidth());
+    }
+  }
+
   public void stopStream(WebSocketSession session) throws IOException {
     StreamPipeline pipeline = pipelines.get(session.getId());
-    String stream = pipeline.getStream();
-    if(streams.containsKey(stream)){
-      streams.remove(stream);
+    if (pipeline != null) {
+      stopStream(pipeline);
+    }
+  }
 
+  private void stopStream(StreamPipeline pipeline) throws IOException {
+    String stream = pipeline.getStream();
+    if(stream != null && streams.remove(stream, pipeline)){
+      state.removeStream(stream);
+      admission.streamStopped(stream);
+      streamDirectory.remove(stream);
+      metrics.streamStopped(stream);
+      registry.setStreaming(pipeline.getCaller(), false);
+      registry.setStreaming(pipeline.getCallee(), false);
+      stopStreaming(pipeline);
+      for (StreamViewer viewer : pipeline.getViewers()) {
+        if (viewing.remove(viewer.getSessionId(), stream)) {
+          UserSession user = registry.getBySessionId(viewer.getSessionId());
+          if (user != null) {
+            user.transition(UserSession.State.VIEWING, UserSession.State.IDLE);
+          }
+        }
+        releaseRemote(viewer.getSessionId());
+      }
+      for (String publisher : publishing.keySet()) {
+        if (publishing.remove(publisher, stream)) {
+          UserSession user = registry.getBySessionId(publisher);
+          if (user != null) {
+            registry.setStreaming(user, false);
+            pipeline.removeSource(user.getName());
+            user.sendMessage(SignalingCodec.STOP_COMMUNICATION);
+            user.clear();
+          }
+          releaseRemote(publisher);
+        }
+      }
       pipeline.stopStream();
     }
   }
 
+  /**
+   * A viewer session leaves the stream it was watching
+   * @param sessionId
+   */
+  private void stopViewing(String sessionId) {
+    String stream = viewing.remove(sessionId);
+    StreamPipeline pipeline = stream != null ? streams.get(stream) : null;
+    UserSession user = registry.getBySessionId(sessionId);
+    if (user != null) {
+      user.transition(UserSession.State.VIEWING, UserSession.State.IDLE);
+    }
+    if (pipeline != null) {
+      pipeline.removeViewer(sessionId);
+      log.debug("Viewer left stream '{}'", stream);
+    }
+    if (stream != null) {
+      releaseRemote(sessionId);
+    }
+  }
+
   public void stop(WebSocketSession session) throws IOException {
-    String sessionId = session.getId();
-    if (pipelines.get(sessionId) == null ) {
+    stop(session.getId());
+  }
+
+  private void stop(String sessionId) throws IOException {
+    StreamPipeline pipeline = pipelines.remove(sessionId);
+    if (pipeline == null) {
+      cancelCall(sessionId);
       return;
     }
-    if (pipelines.get(sessionId).getStream() != null){
-        stopStream(session);
+    if (pipeline.getStream() != null) {
+      stopStream(pipeline);
     }
-    if (pipelines.containsKey(sessionId)) {
-      pipelines.get(sessionId).release();
-      StreamPipeline pipeline = pipelines.remove(sessionId);
-      pipeline.release();
+    pipeline.release();
+    // The peer keeps no entry pointing to a released pipeline
+    pipelines.remove(pipeline.getCaller().getSessionId(), pipeline);
+    pipelines.remove(pipeline.getCallee().getSessionId(), pipeline);
+    registry.setInCall(pipeline.getCaller(), false);
+    registry.setInCall(pipeline.getCallee(), false);
+
+    // Both users can stop the communication. A 'stopCommunication'
+    // message will be sent to the other peer.
+    UserSession stopperUser = registry.getBySessionId(sessionId);
+    if (stopperUser != null) {
+      UserSession stoppedUser =
+          (stopperUser.getCallingFrom() != null) ? registry.getByName(stopperUser
+              .getCallingFrom()) : stopperUser.getCallingTo() != null ? registry
+                  .getByName(stopperUser.getCallingTo()) : null;
+
+      if (stoppedUser != null) {
+        stoppedUser.sendMessage(SignalingCodec.STOP_COMMUNICATION);
+        stoppedUser.clear();
+        releaseRemote(stoppedUser.getSessionId());
+      }
+      stopperUser.clear();
+      releaseRemote(sessionId);
+    }
+  }
 
-      // Both users can stop the communication. A 'stopCommunication'
-      // message will be sent to the other peer.
-      UserSession stopperUser = registry.getBySession(session);
-      if (stopperUser != null) {
-        UserSession stoppedUser =
-            (stopperUser.getCallingFrom() != null) ? registry.getByName(stopperUser
-                .getCallingFrom()) : stopperUser.getCallingTo() != null ? registry
-                    .getByName(stopperUser.getCallingTo()) : null;
+  /**
+   * A call that was not answered yet is given up, by either peer
+   */
+  private void cancelCall(String sessionId) throws IOException {
+    UserSession user = registry.getBySessionId(sessionId);
+    if (user == null || user.getState() != UserSession.State.CALLING) {
+      return;
+    }
+    // The callee stops ringing, the caller is told the call was rejected
+    boolean caller = user.getCallingTo() != null;
+    String peerName = caller ? user.getCallingTo() : user.getCallingFrom();
+    UserSession peer = registry.getByName(peerName);
+    if (user.cancelCall(peerName) && peer != null && peer.cancelCall(user.getName())) {
+      peer.sendMessage(caller ? SignalingCodec.STOP_COMMUNICATION
+          : SignalingCodec.rejected("callResponse"));
+      releaseRemote(peer.getSessionId());
+    }
+  }
 
-                    if (stoppedUser != null) {
-                      JsonObject message = new JsonObject();
-                      message.addProperty("id", "stopCommunication");
-                      stoppedUser.sendMessage(message);
-                      stoppedUser.clear();
-                    }
-                    stopperUser.clear();
+  /**
+   * Frees what the shared state and the other nodes keep for a client of this node.
+   */
+  private void closedLocally(String sessionId, UserSession user) {
+    if (user != null) {
+      state.removeUser(user.getName());
+    }
+    hostedOn.remove(sessionId);
+    Set<String> nodes = forwardedTo.remove(sessionId);
+    if (nodes != null) {
+      for (String node : nodes) {
+        state.send(node, new RoutedMessage(RoutedMessage.Type.CLOSED, state.getNodeId(),
+            sessionId, null, null));
       }
+    }
+  }
 
+  private void closeSession(WebSocketSession session, CloseStatus status) {
+    try {
+      session.close(status);
+    } catch (IOException e) {
+      log.debug(e.getMessage());
     }
   }
 
   @Override
-  public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-    stop(session);
-    registry.removeBySession(session);
+  public void afterConnectionClosed(WebSocketSession transportSession, CloseStatus status)
+      throws Exception {
+    final String sessionId = transportSession.getId();
+    signalingExecutor.executeLast(sessionId, new Runnable() {
+      @Override
+      public void run() {
+        closed(sessionId);
+      }
+    });
+  }
+
+  /**
+   * Releases everything kept for a session that is gone.
+   */
+  private void closed(String sessionId) {
+    try {
+      cancelAdmission(sessionId);
+      stopViewing(sessionId);
+      leaveStream(sessionId);
+      stop(sessionId);
+    } catch (Throwable t) {
+      log.error(t.getMessage(), t);
+    } finally {
+      UserSession user = registry.removeBySessionId(sessionId);
+      if (remoteSessions.remove(sessionId) == null) {
+        closedLocally(sessionId, user);
+      }
+      streamDirectoryPublisher.unsubscribe(sessionId);
+      iceCandidateBatcher.remove(sessionId);
+      outboundSessions.remove(sessionId);
+    }
+  }
+
+  /**
+   * Releases what is still kept for sessions that are no longer open, and fixes the calls,
+   * streams and viewers left inconsistent by a setup that failed halfway. Every fix runs on the
+   * signaling queue of the session it belongs to, so it never races with its messages.
+   *
+   * @return sessions found stale
+   */
+  public int reapStale() {
+    Set<String> stale = new HashSet<>();
+    addStale(pipelines.keySet(), stale);
+    addStale(viewing.keySet(), stale);
+    addStale(publishing.keySet(), stale);
+    addStale(admissionWaiting.keySet(), stale);
+    addStale(hostedOn.keySet(), stale);
+    addStale(forwardedTo.keySet(), stale);
+    for (UserSession user : registry.getUsers()) {
+      if (outboundSessions.find(user.getSessionId()) == null) {
+        stale.add(user.getSessionId());
+      }
+    }
+    for (final String sessionId : stale) {
+      log.info("Releasing state left behind by closed session '{}'", sessionId);
+      signalingExecutor.executeLast(sessionId, () -> closed(sessionId));
+    }
+
+    for (Map.Entry<String, StreamPipeline> entry : pipelines.entrySet()) {
+      final String sessionId = entry.getKey();
+      final StreamPipeline pipeline = entry.getValue();
+      if (pipeline.isReleased() && !stale.contains(sessionId)) {
+        signalingExecutor.execute(sessionId, () -> {
+          if (pipelines.remove(sessionId, pipeline)) {
+            log.info("Removed released call pipeline of session '{}'", sessionId);
+          }
+        });
+      }
+    }
+
+    Set<StreamPipeline> calls = new HashSet<>(pipelines.values());
+    for (final StreamPipeline pipeline : streams.values()) {
+      if (pipeline.isReleased() || !calls.contains(pipeline)) {
+        String callerId = pipeline.getCaller().getSessionId();
+        Runnable stop = () -> {
+          try {
+            log.info("Stopping stream '{}' left without a call", pipeline.getStream());
+            stopStream(pipeline);
+          } catch (IOException e) {
+            log.debug(e.getMessage());
+          }
+        };
+        if (!signalingExecutor.execute(callerId, stop) && signalingExecutor.isClosed(callerId)) {
+          // Nothing runs on the queue of a closed session anymore
+          stop.run();
+        }
+        continue;
+      }
+      final String stream = pipeline.getStream();
+      for (StreamViewer viewer : pipeline.getViewers()) {
+        final String sessionId = viewer.getSessionId();
+        if (!stream.equals(viewing.get(sessionId)) && !stale.contains(sessionId)) {
+          signalingExecutor.execute(sessionId, () -> {
+            if (!stream.equals(viewing.get(sessionId)) && pipeline.removeViewer(sessionId)) {
+              log.info("Released viewer endpoints of '{}' left on stream '{}'", sessionId, stream);
+            }
+          });
+        }
+      }
+    }
+    return stale.size();
+  }
+
+  private void addStale(Set<String> sessionIds, Set<String> stale) {
+    for (String sessionId : sessionIds) {
+      if (outboundSessions.find(sessionId) == null) {
+        stale.add(sessionId);
+      }
+    }
+  }
+
+  /**
+   * @return IDs of the media pipelines of every call and stream, relays included
+   */
+  public Set<String> getPipelineIds() {
+    Set<String> ids = new HashSet<>();
+    for (StreamPipeline pipeline : pipelines.values()) {
+      ids.addAll(pipeline.getPipelineIds());
+    }
+    for (StreamPipeline pipeline : streams.values()) {
+      ids.addAll(pipeline.getPipelineIds());
+    }
+    return ids;
   }
 
 }
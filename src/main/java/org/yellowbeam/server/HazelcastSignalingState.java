@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MembershipAdapter;
+import com.hazelcast.core.MembershipEvent;
+
+/**
+ * State shared by the signaling nodes through an embedded Hazelcast member started by each of
+ * them. Users and streams are kept in distributed maps, with the ID of their node as value, and
+ * every node listens to a topic of its own for the messages routed to it. When a node leaves the
+ * cluster the users and streams it held are removed.
+ */
+public class HazelcastSignalingState implements SignalingState {
+
+  private static final Logger log = LoggerFactory.getLogger(HazelcastSignalingState.class);
+
+  private static final String TOPIC_PREFIX = "yellowbeam.node.";
+
+  private final HazelcastInstance hazelcast;
+  private final String nodeId;
+  private final IMap<String, String> users;
+  private final IMap<String, String> streams;
+
+  /**
+   * @param members addresses of the other nodes, empty to discover them by multicast
+   */
+  public HazelcastSignalingState(List<String> members, String cluster) {
+    Config config = new Config();
+    config.getGroupConfig().setName(cluster);
+    if (!members.isEmpty()) {
+      JoinConfig join = config.getNetworkConfig().getJoin();
+      join.getMulticastConfig().setEnabled(false);
+      join.getTcpIpConfig().setEnabled(true).setMembers(members);
+    }
+    this.hazelcast = Hazelcast.newHazelcastInstance(config);
+    this.nodeId = hazelcast.getCluster().getLocalMember().getUuid();
+    this.users = hazelcast.getMap("yellowbeam.users");
+    this.streams = hazelcast.getMap("yellowbeam.streams");
+
+    hazelcast.getCluster().addMembershipListener(new MembershipAdapter() {
+      @Override
+      public void memberRemoved(MembershipEvent event) {
+        String node = event.getMember().getUuid();
+        log.info("Signaling node {} left, removing its users and streams", node);
+        removeNode(users, node);
+        removeNode(streams, node);
+      }
+    });
+  }
+
+  private static void removeNode(IMap<String, String> map, String node) {
+    for (Map.Entry<String, String> entry : map.entrySet()) {
+      if (node.equals(entry.getValue())) {
+        map.remove(entry.getKey(), node);
+      }
+    }
+  }
+
+  @Override
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  @Override
+  public boolean registerUser(String name) {
+    return users.putIfAbsent(name, nodeId) == null;
+  }
+
+  @Override
+  public String getUserNode(String name) {
+    return users.get(name);
+  }
+
+  @Override
+  public void removeUser(String name) {
+    users.remove(name, nodeId);
+  }
+
+  @Override
+  public boolean registerStream(String name) {
+    return streams.putIfAbsent(name, nodeId) == null;
+  }
+
+  @Override
+  public String getStreamNode(String name) {
+    return streams.get(name);
+  }
+
+  @Override
+  public void removeStream(String name) {
+    streams.remove(name, nodeId);
+  }
+
+  @Override
+  public void send(String node, RoutedMessage message) {
+    hazelcast.<RoutedMessage>getTopic(TOPIC_PREFIX + node).publish(message);
+  }
+
+  @Override
+  public void setReceiver(final Consumer<RoutedMessage> receiver) {
+    hazelcast.<RoutedMessage>getTopic(TOPIC_PREFIX + nodeId)
+        .addMessageListener(message -> receiver.accept(message.getMessageObject()));
+  }
+
+  @Override
+  public void shutdown() {
+    hazelcast.shutdown();
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.IceCandidate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Coalesces the ICE candidates found by the media server for a session. The first candidate opens
+ * a short window, every candidate found during it is sent in the same {@code iceCandidates}
+ * message. A window with a single candidate is sent as a plain {@code iceCandidate} message.
+ * Candidates of stream viewers are tagged with the video their endpoint receives.
+ *
+ * A batch only lives for its window, so candidates found while the endpoints of a closed session
+ * are being released do not leave a batch behind. Candidates for closed sessions are dropped.
+ */
+public class IceCandidateBatcher {
+
+  private static final Logger log = LoggerFactory.getLogger(IceCandidateBatcher.class);
+
+  private final long windowMillis;
+  private final ScheduledExecutorService scheduler;
+  private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<>();
+
+  /**
+   * @param windowMillis coalescing window, 0 sends every candidate on its own
+   */
+  public IceCandidateBatcher(long windowMillis) {
+    this.windowMillis = windowMillis;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "ice-batcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public void add(WebSocketSession session, IceCandidate candidate) {
+    add(session, null, candidate);
+  }
+
+  /**
+   * @param video video of a stream the candidate belongs to, for sessions that view several
+   *          videos at once; null for call endpoints
+   */
+  public void add(WebSocketSession session, String video, IceCandidate candidate) {
+    if (!session.isOpen()) {
+      return;
+    }
+    if (windowMillis <= 0) {
+      List<IceCandidate> single = new ArrayList<>(1);
+      single.add(candidate);
+      send(session, video, single);
+      return;
+    }
+
+    final Batch batch = batches.computeIfAbsent(session.getId(), id -> new Batch(session));
+    boolean schedule;
+    synchronized (batch) {
+      batch.candidates.computeIfAbsent(video, v -> new ArrayList<>()).add(candidate);
+      schedule = !batch.scheduled;
+      batch.scheduled = true;
+    }
+    if (schedule) {
+      scheduler.schedule(() -> flush(batch), windowMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public void remove(WebSocketSession session) {
+    remove(session.getId());
+  }
+
+  public void remove(String sessionId) {
+    batches.remove(sessionId);
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private void flush(Batch batch) {
+    Map<String, List<IceCandidate>> candidates;
+    synchronized (batch) {
+      candidates = batch.candidates;
+      batch.candidates = new HashMap<>();
+      batch.scheduled = false;
+    }
+    // The next candidate opens a new batch; one added meanwhile is flushed by its own window
+    batches.remove(batch.session.getId(), batch);
+    if (!batch.session.isOpen()) {
+      return;
+    }
+    for (Map.Entry<String, List<IceCandidate>> entry : candidates.entrySet()) {
+      send(batch.session, entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void send(WebSocketSession session, String video, List<IceCandidate> candidates) {
+    try {
+      session.sendMessage(SignalingCodec.encodeCandidates(video, candidates));
+    } catch (IOException e) {
+      log.debug(e.getMessage());
+    }
+  }
+
+  private static class Batch {
+
+    private final WebSocketSession session;
+    private Map<String, List<IceCandidate>> candidates = new HashMap<>();
+    private boolean scheduled;
+
+    Batch(WebSocketSession session) {
+      this.session = session;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * State of a single signaling node, kept in local maps. There are no other nodes to send
+ * messages to.
+ */
+public class InMemorySignalingState implements SignalingState {
+
+  private final String nodeId = UUID.randomUUID().toString();
+  private final ConcurrentHashMap<String, String> users = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, String> streams = new ConcurrentHashMap<>();
+
+  @Override
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  @Override
+  public boolean registerUser(String name) {
+    return users.putIfAbsent(name, nodeId) == null;
+  }
+
+  @Override
+  public String getUserNode(String name) {
+    return users.get(name);
+  }
+
+  @Override
+  public void removeUser(String name) {
+    users.remove(name);
+  }
+
+  @Override
+  public boolean registerStream(String name) {
+    return streams.putIfAbsent(name, nodeId) == null;
+  }
+
+  @Override
+  public String getStreamNode(String name) {
+    return streams.get(name);
+  }
+
+  @Override
+  public void removeStream(String name) {
+    streams.remove(name);
+  }
+
+  @Override
+  public void send(String node, RoutedMessage message) {
+    throw new IllegalStateException("No signaling node '" + node + "'");
+  }
+
+  @Override
+  public void setReceiver(Consumer<RoutedMessage> receiver) {
+  }
+
+  @Override
+  public void shutdown() {
+  }
+}
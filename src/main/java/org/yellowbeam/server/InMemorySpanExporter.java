@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Keeps the last spans exported in memory, for tests and for inspecting a running server.
+ */
+public class InMemorySpanExporter implements SpanExporter {
+
+  private final int capacity;
+  private final Deque<TraceSpan> spans = new ArrayDeque<>();
+
+  /**
+   * @param capacity number of spans kept, the oldest ones are dropped first
+   */
+  public InMemorySpanExporter(int capacity) {
+    this.capacity = capacity;
+  }
+
+  @Override
+  public synchronized void export(List<TraceSpan> trace) {
+    for (TraceSpan span : trace) {
+      if (spans.size() == capacity) {
+        spans.pollFirst();
+      }
+      spans.addLast(span);
+    }
+  }
+
+  public synchronized List<TraceSpan> getSpans() {
+    return new ArrayList<>(spans);
+  }
+
+  public synchronized void reset() {
+    spans.clear();
+  }
+
+  @Override
+  public void shutdown() {
+  }
+}
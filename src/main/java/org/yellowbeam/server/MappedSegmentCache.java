@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recording files mapped into memory, the least recently used ones dropped first once their
+ * total size goes over the budget. A file is mapped once and every request reading it is served
+ * from the same pages of the OS page cache. An entry is mapped again when its file changes size
+ * or modification time, as a recording still being written does.
+ *
+ * A mapping dropped from the cache is unmapped by the garbage collector once the requests still
+ * reading it are done.
+ */
+class MappedSegmentCache {
+
+  private final long maxBytes;
+  private final long maxFileBytes;
+
+  // Guarded by this, in access order
+  private final LinkedHashMap<Path, Segment> segments = new LinkedHashMap<>(16, 0.75f, true);
+  private long mappedBytes;
+
+  /**
+   * @param maxBytes total size of the files kept mapped, 0 disables the cache
+   * @param maxFileBytes size of the largest file that is mapped
+   */
+  MappedSegmentCache(long maxBytes, long maxFileBytes) {
+    this.maxBytes = maxBytes;
+    this.maxFileBytes = Math.min(maxFileBytes, maxBytes);
+  }
+
+  /**
+   * @param size size of the file when it was last checked
+   * @param lastModified modification time of the file when it was last checked
+   * @return a read-only buffer over the first {@code size} bytes of the file, or null if the file
+   *         is too large to be mapped
+   */
+  ByteBuffer get(Path file, long size, long lastModified) throws IOException {
+    if (size > maxFileBytes) {
+      return null;
+    }
+    synchronized (this) {
+      Segment segment = segments.get(file);
+      if (segment != null && segment.size == size && segment.lastModified == lastModified) {
+        return segment.buffer.duplicate();
+      }
+    }
+
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    synchronized (this) {
+      Segment previous = segments.put(file, new Segment(buffer, size, lastModified));
+      if (previous != null) {
+        mappedBytes -= previous.size;
+      }
+      mappedBytes += size;
+      for (Iterator<Map.Entry<Path, Segment>> it = segments.entrySet().iterator();
+          mappedBytes > maxBytes && it.hasNext();) {
+        mappedBytes -= it.next().getValue().size;
+        it.remove();
+      }
+    }
+    return buffer.duplicate();
+  }
+
+  private static class Segment {
+
+    private final MappedByteBuffer buffer;
+    private final long size;
+    private final long lastModified;
+
+    Segment(MappedByteBuffer buffer, long size, long lastModified) {
+      this.buffer = buffer;
+      this.size = size;
+      this.lastModified = lastModified;
+    }
+  }
+}
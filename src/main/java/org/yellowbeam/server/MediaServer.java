@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+
+/**
+ * A Kurento Media Server and the load YellowBeam has placed on it.
+ */
+public class MediaServer {
+
+  private final String url;
+  private final KurentoClient client;
+
+  private final AtomicInteger pipelines = new AtomicInteger();
+  private final AtomicInteger endpoints = new AtomicInteger();
+  private volatile float cpuLoad;
+  // Pipelines created by this node, by ID, with their creation time
+  private final ConcurrentHashMap<String, Long> created = new ConcurrentHashMap<>();
+
+  public MediaServer(String url, KurentoClient client) {
+    this.url = url;
+    this.client = client;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public KurentoClient getClient() {
+    return client;
+  }
+
+  /**
+   * Creates a pipeline on the server, remembering that it belongs to this node. Other signaling
+   * nodes and other applications may use the same server, and only the pipelines created here
+   * can be released as orphans.
+   */
+  public MediaPipeline createPipeline() {
+    MediaPipeline pipeline = client.createMediaPipeline();
+    created.put(pipeline.getId(), System.nanoTime());
+    return pipeline;
+  }
+
+  /**
+   * @return true if the pipeline was created by this node
+   */
+  public boolean isOwned(String pipelineId) {
+    return created.containsKey(pipelineId);
+  }
+
+  /**
+   * Forgets the pipelines created before a listing of the server that no longer has them.
+   *
+   * @param listed IDs of the pipelines on the server
+   * @param listedAt {@link System#nanoTime()} before the listing was requested
+   */
+  void retainOwned(Set<String> listed, long listedAt) {
+    created.entrySet().removeIf(e -> e.getValue() - listedAt < 0 && !listed.contains(e.getKey()));
+  }
+
+  int getOwnedCount() {
+    return created.size();
+  }
+
+  public int getPipelineCount() {
+    return pipelines.get();
+  }
+
+  public int getEndpointCount() {
+    return endpoints.get();
+  }
+
+  /**
+   * @return CPU usage percentage last reported by the server
+   */
+  public float getCpuLoad() {
+    return cpuLoad;
+  }
+
+  void setCpuLoad(float cpuLoad) {
+    this.cpuLoad = cpuLoad;
+  }
+
+  void pipelineCreated(int endpointCount) {
+    pipelines.incrementAndGet();
+    endpoints.addAndGet(endpointCount);
+  }
+
+  void pipelineReleased(int endpointCount) {
+    pipelines.decrementAndGet();
+    endpoints.addAndGet(-endpointCount);
+  }
+
+  void endpointsCreated(int count) {
+    endpoints.addAndGet(count);
+  }
+
+  void endpointsReleased(int count) {
+    endpoints.addAndGet(-count);
+  }
+
+  @Override
+  public String toString() {
+    return url;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.kurento.client.KurentoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The media servers available to YellowBeam. New pipelines are placed on one of them by the
+ * configured {@link PlacementPolicy}.
+ */
+public class MediaServerPool {
+
+  private static final Logger log = LoggerFactory.getLogger(MediaServerPool.class);
+
+  private final List<MediaServer> servers;
+  private final PlacementPolicy policy;
+  private final ScheduledExecutorService loadMonitor;
+
+  /**
+   * @param urls web socket URLs of the servers
+   * @param clientFactory opens the connection to a server, usually {@link KurentoClient#create}
+   * @param policy placement policy for new pipelines
+   * @param loadIntervalMillis period of the CPU load refresh, 0 disables it
+   */
+  public MediaServerPool(List<String> urls, Function<String, KurentoClient> clientFactory,
+      PlacementPolicy policy, long loadIntervalMillis) {
+    if (urls.isEmpty()) {
+      throw new IllegalArgumentException("At least one media server URL is required");
+    }
+
+    List<MediaServer> list = new ArrayList<>(urls.size());
+    for (String url : urls) {
+      list.add(new MediaServer(url, clientFactory.apply(url)));
+      log.info("Using media server {}", url);
+    }
+    this.servers = Collections.unmodifiableList(list);
+    this.policy = policy;
+
+    if (loadIntervalMillis > 0) {
+      this.loadMonitor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "kms-load-monitor");
+        thread.setDaemon(true);
+        return thread;
+      });
+      loadMonitor.scheduleWithFixedDelay(this::refreshLoad, 0, loadIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    } else {
+      this.loadMonitor = null;
+    }
+  }
+
+  public List<MediaServer> getServers() {
+    return servers;
+  }
+
+  /**
+   * @return the server where the next pipeline should be created
+   */
+  public MediaServer select() {
+    return servers.size() == 1 ? servers.get(0) : policy.select(servers);
+  }
+
+  /**
+   * @param excluded servers that must not be chosen
+   * @return the best server among the remaining ones, or null if all of them are excluded
+   */
+  public MediaServer select(Collection<MediaServer> excluded) {
+    List<MediaServer> candidates = new ArrayList<>(servers);
+    candidates.removeAll(excluded);
+    return candidates.isEmpty() ? null : policy.select(candidates);
+  }
+
+  public void shutdown() {
+    if (loadMonitor != null) {
+      loadMonitor.shutdownNow();
+    }
+    for (MediaServer server : servers) {
+      server.getClient().destroy();
+    }
+  }
+
+  private void refreshLoad() {
+    for (MediaServer server : servers) {
+      try {
+        server.setCpuLoad(server.getClient().getServerManager().getUsedCpu(1000));
+      } catch (Throwable t) {
+        // An unreachable server is the worst candidate
+        server.setCpuLoad(Float.MAX_VALUE);
+        log.debug("Could not read load of media server {}: {}", server, t.getMessage());
+      }
+    }
+  }
+}
@@ -17,14 +17,21 @@
 
 package org.yellowbeam.server;
 
+import java.nio.file.Paths;
+import java.util.Arrays;
+
 import org.kurento.client.KurentoClient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
+import io.micrometer.core.instrument.MeterRegistry;
+
 /**
  * Video call 1 to 1 demo (main).
  *
@@ -46,9 +53,117 @@ public class One2OneCallApp implements WebSocketConfigurer {
     return new UserRegistry();
   }
 
+  @Bean(destroyMethod = "shutdown")
+  public SignalingState signalingState(@Value("${signaling.state:memory}") String backend,
+      @Value("${signaling.state.members:}") String members,
+      @Value("${signaling.state.cluster:yellow-beam}") String cluster) {
+    return SignalingState.create(backend, members, cluster);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public SignalingExecutor signalingExecutor(@Value("${signaling.async:true}") boolean async,
+      @Value("${signaling.virtual-threads:false}") boolean virtualThreads,
+      @Value("${signaling.threads:16}") int threads,
+      @Value("${signaling.max-pending-per-session:64}") int maxPendingPerSession) {
+    return new SignalingExecutor(async, virtualThreads, threads, maxPendingPerSession);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public OutboundSessions outboundSessions(@Value("${signaling.outbound.threads:16}") int threads,
+      @Value("${signaling.outbound.capacity:256}") int capacity,
+      @Value("${signaling.outbound.overflow:DROP_OLDEST_CANDIDATE}")
+      QueuedWebSocketSession.OverflowPolicy overflowPolicy,
+      @Value("${signaling.outbound.send-time-limit-ms:10000}") long sendTimeLimitMillis) {
+    return new OutboundSessions(threads, capacity, overflowPolicy, sendTimeLimitMillis);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public IceCandidateBatcher iceCandidateBatcher(
+      @Value("${signaling.ice-batch-window-ms:20}") long windowMillis) {
+    return new IceCandidateBatcher(windowMillis);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public MediaServerPool mediaServerPool(
+      @Value("${kms.urls:${kms.url:ws://localhost:8888/kurento}}") String[] urls,
+      @Value("${kms.placement:least-pipelines}") String placement,
+      @Value("${kms.load-interval-ms:5000}") long loadIntervalMillis) {
+    return new MediaServerPool(Arrays.asList(urls), KurentoClient::create,
+        PlacementPolicy.named(placement), "cpu-load".equals(placement) ? loadIntervalMillis : 0);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public PipelinePool pipelinePool(MediaServerPool mediaServerPool,
+      @Value("${kurento.pool.size:4}") int size,
+      @Value("${kurento.pool.max-idle-seconds:300}") long maxIdleSeconds) {
+    return new PipelinePool(mediaServerPool, size, maxIdleSeconds * 1000);
+  }
+
   @Bean
-  public KurentoClient kurentoClient() {
-    return KurentoClient.create();
+  public BitrateLadder bitrateLadder(@Value("${stream.renditions:}") String renditions) {
+    return BitrateLadder.parse(renditions);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public AdmissionController admissionController(
+      @Value("${stream.admission.rate:50}") double rate,
+      @Value("${stream.admission.burst:50}") int burst,
+      @Value("${stream.admission.stream-rate:20}") double streamRate,
+      @Value("${stream.admission.stream-burst:20}") int streamBurst,
+      @Value("${stream.admission.queue-size:500}") int queueSize,
+      @Value("${stream.admission.max-wait-ms:30000}") long maxWaitMillis) {
+    return new AdmissionController(rate, burst, streamRate, streamBurst, queueSize,
+        maxWaitMillis);
+  }
+
+  @Bean
+  public ServletRegistrationBean<SegmentServlet> segmentServlet(
+      @Value("${stream.recording.dir:}") String dir,
+      @Value("${stream.recording.cache-bytes:268435456}") long cacheBytes,
+      @Value("${stream.recording.max-mapped-file-bytes:33554432}") long maxMappedFileBytes,
+      @Value("${stream.recording.max-age-seconds:3600}") int maxAgeSeconds) {
+    SegmentServlet servlet = new SegmentServlet(dir.isEmpty() ? null : Paths.get(dir),
+        new MappedSegmentCache(cacheBytes, maxMappedFileBytes), maxAgeSeconds);
+    return new ServletRegistrationBean<>(servlet, "/recordings/*");
+  }
+
+  @Bean
+  public StreamDirectory streamDirectory(
+      @Value("${stream.directory.snapshot-ttl-ms:1000}") long snapshotTtlMillis) {
+    return new StreamDirectory(snapshotTtlMillis);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public StreamDirectoryPublisher streamDirectoryPublisher(StreamDirectory streamDirectory,
+      @Value("${stream.directory.publish-interval-ms:500}") long publishIntervalMillis) {
+    return new StreamDirectoryPublisher(streamDirectory, publishIntervalMillis);
+  }
+
+  @Bean
+  public SignalingMetrics signalingMetrics(MeterRegistry meterRegistry, UserRegistry registry,
+      OutboundSessions outboundSessions, PipelinePool pipelinePool,
+      MediaServerPool mediaServerPool, AdmissionController admissionController) {
+    return new SignalingMetrics(meterRegistry, registry, outboundSessions, pipelinePool,
+        mediaServerPool, admissionController);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public SessionReaper sessionReaper(CallHandler callHandler, OutboundSessions outboundSessions,
+      MediaServerPool mediaServerPool, PipelinePool pipelinePool, SignalingMetrics metrics,
+      @Value("${signaling.reaper.interval-ms:15000}") long intervalMillis,
+      @Value("${signaling.reaper.timeout-ms:45000}") long timeoutMillis,
+      @Value("${signaling.reaper.batch-size:20}") int batchSize) {
+    SessionReaper reaper = new SessionReaper(callHandler, outboundSessions, mediaServerPool,
+        pipelinePool, intervalMillis, timeoutMillis, batchSize);
+    metrics.monitorReaper(reaper);
+    return reaper;
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public SetupTracer setupTracer(@Value("${tracing.exporter:none}") String exporter,
+      @Value("${tracing.file:traces.jsonl}") String file,
+      @Value("${tracing.service-name:yellow-beam}") String serviceName) {
+    return SetupTracer.create(exporter, file, serviceName);
   }
 
   @Override
@@ -0,0 +1,157 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Appends every trace to a file as one line of OTLP JSON, the format of the OpenTelemetry
+ * collector file exporter, so the file can be replayed into any OpenTelemetry backend. Lines are
+ * written by a background thread.
+ */
+public class OtlpJsonFileExporter implements SpanExporter {
+
+  private static final Logger log = LoggerFactory.getLogger(OtlpJsonFileExporter.class);
+
+  private static final int SPAN_KIND_INTERNAL = 1;
+  private static final int STATUS_CODE_ERROR = 2;
+
+  private final String serviceName;
+  private final Writer out;
+  private final ExecutorService writer;
+
+  public OtlpJsonFileExporter(Path file, String serviceName) throws IOException {
+    this.serviceName = serviceName;
+    this.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+    this.writer = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "trace-exporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public void export(final List<TraceSpan> spans) {
+    writer.execute(() -> {
+      try {
+        out.write(toOtlpJson(serviceName, spans));
+        out.write('\n');
+        out.flush();
+      } catch (IOException e) {
+        log.warn("Could not export trace: {}", e.getMessage());
+      }
+    });
+  }
+
+  @Override
+  public void shutdown() {
+    // Closed after the traces already queued are written
+    writer.execute(() -> {
+      try {
+        out.close();
+      } catch (IOException e) {
+        log.debug(e.getMessage());
+      }
+    });
+    writer.shutdown();
+  }
+
+  /**
+   * @return the spans of a trace as an OTLP {@code ExportTraceServiceRequest} in JSON
+   */
+  static String toOtlpJson(String serviceName, List<TraceSpan> spans) throws IOException {
+    StringWriter json = new StringWriter(256 * spans.size() + 256);
+    JsonWriter writer = new JsonWriter(json);
+    writer.beginObject();
+    writer.name("resourceSpans").beginArray().beginObject();
+    writer.name("resource").beginObject();
+    writer.name("attributes").beginArray();
+    writeAttribute(writer, "service.name", serviceName);
+    writer.endArray();
+    writer.endObject();
+    writer.name("scopeSpans").beginArray().beginObject();
+    writer.name("scope").beginObject().name("name").value("org.yellowbeam.server").endObject();
+    writer.name("spans").beginArray();
+    for (TraceSpan span : spans) {
+      writer.beginObject();
+      writer.name("traceId").value(span.getTraceId());
+      writer.name("spanId").value(span.getSpanId());
+      if (span.getParentSpanId() != null) {
+        writer.name("parentSpanId").value(span.getParentSpanId());
+      }
+      writer.name("name").value(span.getName());
+      writer.name("kind").value(SPAN_KIND_INTERNAL);
+      // 64 bit integers are strings in OTLP JSON
+      writer.name("startTimeUnixNano").value(Long.toString(span.getStartEpochNanos()));
+      writer.name("endTimeUnixNano").value(Long.toString(span.getEndEpochNanos()));
+      writer.name("attributes").beginArray();
+      for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet()) {
+        writeAttribute(writer, attribute.getKey(), attribute.getValue());
+      }
+      writer.endArray();
+      if (span.getError() != null) {
+        writer.name("status").beginObject();
+        writer.name("code").value(STATUS_CODE_ERROR);
+        writer.name("message").value(span.getError());
+        writer.endObject();
+      }
+      writer.endObject();
+    }
+    writer.endArray();
+    writer.endObject().endArray();
+    writer.endObject().endArray();
+    writer.endObject();
+    writer.flush();
+    return json.toString();
+  }
+
+  private static void writeAttribute(JsonWriter writer, String key, Object value)
+      throws IOException {
+    writer.beginObject();
+    writer.name("key").value(key);
+    writer.name("value").beginObject();
+    if (value instanceof Boolean) {
+      writer.name("boolValue").value((Boolean) value);
+    } else if (value instanceof Integer || value instanceof Long) {
+      writer.name("intValue").value(value.toString());
+    } else if (value instanceof Number) {
+      writer.name("doubleValue").value((Number) value);
+    } else {
+      writer.name("stringValue").value(value.toString());
+    }
+    writer.endObject();
+    writer.endObject();
+  }
+}
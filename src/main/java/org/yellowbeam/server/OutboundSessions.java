@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Keeps the {@link QueuedWebSocketSession} of every open connection, using the session ID as key
+ * in the map. All the outbound queues share one pool of drain threads. With a send time limit, a
+ * watchdog closes the sessions whose write has been blocked longer than that, so a few stalled
+ * clients cannot hold every drain thread.
+ */
+public class OutboundSessions {
+
+  private final ConcurrentHashMap<String, QueuedWebSocketSession> sessions =
+      new ConcurrentHashMap<>();
+  private final ExecutorService drainExecutor;
+  private final int capacity;
+  private final QueuedWebSocketSession.OverflowPolicy overflowPolicy;
+  private final long sendTimeLimitMillis;
+  private final ScheduledExecutorService watchdog;
+
+  public OutboundSessions(int threads, int capacity,
+      QueuedWebSocketSession.OverflowPolicy overflowPolicy) {
+    this(threads, capacity, overflowPolicy, 0);
+  }
+
+  /**
+   * @param sendTimeLimitMillis time a single write may take before the session is closed, 0 for
+   *          no limit
+   */
+  public OutboundSessions(int threads, int capacity,
+      QueuedWebSocketSession.OverflowPolicy overflowPolicy, long sendTimeLimitMillis) {
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.sendTimeLimitMillis = sendTimeLimitMillis;
+    this.drainExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "outbound-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    if (sendTimeLimitMillis > 0) {
+      this.watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "outbound-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      });
+      long period = Math.max(100, sendTimeLimitMillis / 4);
+      watchdog.scheduleWithFixedDelay(this::closeStalled, period, period, TimeUnit.MILLISECONDS);
+    } else {
+      this.watchdog = null;
+    }
+  }
+
+  private void closeStalled() {
+    for (QueuedWebSocketSession session : sessions.values()) {
+      session.closeIfStalled();
+    }
+  }
+
+  /**
+   * Returns the queued session wrapping the given transport session, creating it on first use.
+   */
+  public QueuedWebSocketSession get(WebSocketSession session) {
+    if (session instanceof QueuedWebSocketSession) {
+      return (QueuedWebSocketSession) session;
+    }
+    QueuedWebSocketSession queued = sessions.get(session.getId());
+    if (queued == null) {
+      queued = sessions.computeIfAbsent(session.getId(),
+          id -> new QueuedWebSocketSession(session, drainExecutor, capacity, overflowPolicy,
+              sendTimeLimitMillis));
+    }
+    return queued;
+  }
+
+  /**
+   * @return the queued session with the given ID, or null if it is not open
+   */
+  public QueuedWebSocketSession find(String sessionId) {
+    return sessions.get(sessionId);
+  }
+
+  public QueuedWebSocketSession remove(WebSocketSession session) {
+    return remove(session.getId());
+  }
+
+  public QueuedWebSocketSession remove(String sessionId) {
+    return sessions.remove(sessionId);
+  }
+
+  public Collection<QueuedWebSocketSession> getSessions() {
+    return sessions.values();
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+
+  /**
+   * @return messages waiting to be written, summed over all the sessions
+   */
+  public int getQueuedMessages() {
+    int queued = 0;
+    for (QueuedWebSocketSession session : sessions.values()) {
+      queued += session.getQueueSize();
+    }
+    return queued;
+  }
+
+  public void shutdown() {
+    if (watchdog != null) {
+      watchdog.shutdownNow();
+    }
+    drainExecutor.shutdown();
+  }
+}
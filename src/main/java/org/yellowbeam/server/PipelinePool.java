@@ -0,0 +1,230 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of media pipelines created ahead of time, each one with its caller and callee endpoints
+ * already built and connected to each other. Accepting a call takes a pipeline from the pool
+ * instead of paying for those requests to the media server before the SDP answer.
+ *
+ * Every media server keeps its own set of ready pipelines, so the pipeline handed out is always
+ * on the server chosen by the placement policy. The pool is refilled in the background after every
+ * acquisition. Entries that stay unused for longer than the idle timeout are released and replaced
+ * by fresh ones. Pooled pipelines count in the load of their server like the ones in use, so the
+ * placement policy sees them.
+ */
+public class PipelinePool {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelinePool.class);
+
+  private final MediaServerPool servers;
+  private final int size;
+  private final long maxIdleMillis;
+
+  private final Map<MediaServer, ServerEntries> entries = new HashMap<>();
+  private final AtomicBoolean refilling = new AtomicBoolean();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * @param size number of pipelines kept ready on each media server, 0 disables the pool
+   * @param maxIdleMillis time after which an unused pipeline is replaced
+   */
+  public PipelinePool(MediaServerPool servers, int size, long maxIdleMillis) {
+    this.servers = servers;
+    for (MediaServer server : servers.getServers()) {
+      entries.put(server, new ServerEntries());
+    }
+    this.size = size;
+    this.maxIdleMillis = maxIdleMillis;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "pipeline-pool");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    if (size > 0) {
+      long period = Math.max(1000, maxIdleMillis / 2);
+      scheduler.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+      refill();
+    }
+  }
+
+  /**
+   * Returns the pipeline for a new call, taken from the pool when possible.
+   */
+  public StreamPipeline acquire(UserSession caller, UserSession callee) {
+    MediaServer server = servers.select();
+    ServerEntries ready = entries.get(server);
+    Entry entry = ready.deque.pollFirst();
+    TraceSpan.current().setAttribute("kms.server", server.getUrl())
+        .setAttribute("pool.hit", entry != null);
+    if (entry == null) {
+      if (size > 0) {
+        misses.incrementAndGet();
+        log.debug("Pipeline pool miss on {}, creating pipeline on demand", server);
+      }
+      refill();
+      return new StreamPipeline(server, caller, callee);
+    }
+
+    ready.available.decrementAndGet();
+    hits.incrementAndGet();
+    // Counted again by the call pipeline that takes it over
+    server.pipelineReleased(2);
+    refill();
+    return new StreamPipeline(server, entry.pipeline, entry.callerWebRtcEp, entry.calleeWebRtcEp,
+        caller, callee);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public int getAvailable() {
+    int available = 0;
+    for (ServerEntries ready : entries.values()) {
+      available += ready.available.get();
+    }
+    return available;
+  }
+
+  /**
+   * @return IDs of the pipelines waiting in the pool
+   */
+  public Set<String> getPipelineIds() {
+    Set<String> ids = new HashSet<>();
+    for (ServerEntries ready : entries.values()) {
+      for (Entry entry : ready.deque) {
+        ids.add(entry.pipeline.getId());
+      }
+    }
+    return ids;
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+    for (Map.Entry<MediaServer, ServerEntries> ready : entries.entrySet()) {
+      Entry entry;
+      while ((entry = ready.getValue().deque.pollFirst()) != null) {
+        entry.pipeline.release();
+        ready.getKey().pipelineReleased(2);
+      }
+    }
+  }
+
+  private void refill() {
+    if (size > 0 && getAvailable() < size * entries.size()
+        && refilling.compareAndSet(false, true)) {
+      scheduler.execute(this::doRefill);
+    }
+  }
+
+  private void doRefill() {
+    try {
+      for (Map.Entry<MediaServer, ServerEntries> ready : entries.entrySet()) {
+        try {
+          while (ready.getValue().available.get() < size) {
+            ready.getValue().deque.addLast(createEntry(ready.getKey()));
+            ready.getValue().available.incrementAndGet();
+          }
+        } catch (Throwable t) {
+          log.warn("Could not prewarm media pipeline on {}: {}", ready.getKey(), t.getMessage());
+        }
+      }
+    } finally {
+      refilling.set(false);
+    }
+  }
+
+  private void evictIdle() {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<MediaServer, ServerEntries> server : entries.entrySet()) {
+      ServerEntries ready = server.getValue();
+      for (Iterator<Entry> it = ready.deque.iterator(); it.hasNext();) {
+        Entry entry = it.next();
+        if (now - entry.createdAt > maxIdleMillis && ready.deque.removeFirstOccurrence(entry)) {
+          ready.available.decrementAndGet();
+          entry.pipeline.release();
+          server.getKey().pipelineReleased(2);
+        }
+      }
+    }
+    refill();
+    log.debug("Pipeline pool: {} available, {} hits, {} misses", getAvailable(), hits.get(),
+        misses.get());
+  }
+
+  private Entry createEntry(MediaServer server) {
+    MediaPipeline pipeline = server.createPipeline();
+    try {
+      WebRtcEndpoint callerWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
+      WebRtcEndpoint calleeWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
+      callerWebRtcEp.connect(calleeWebRtcEp);
+      calleeWebRtcEp.connect(callerWebRtcEp);
+      server.pipelineCreated(2);
+      return new Entry(pipeline, callerWebRtcEp, calleeWebRtcEp);
+    } catch (RuntimeException e) {
+      pipeline.release();
+      throw e;
+    }
+  }
+
+  private static class ServerEntries {
+
+    private final ConcurrentLinkedDeque<Entry> deque = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger available = new AtomicInteger();
+  }
+
+  private static class Entry {
+
+    private final MediaPipeline pipeline;
+    private final WebRtcEndpoint callerWebRtcEp;
+    private final WebRtcEndpoint calleeWebRtcEp;
+    private final long createdAt = System.currentTimeMillis();
+
+    Entry(MediaPipeline pipeline, WebRtcEndpoint callerWebRtcEp, WebRtcEndpoint calleeWebRtcEp) {
+      this.pipeline = pipeline;
+      this.callerWebRtcEp = callerWebRtcEp;
+      this.calleeWebRtcEp = calleeWebRtcEp;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses the media server where a new pipeline is created.
+ */
+public interface PlacementPolicy {
+
+  PlacementPolicy LEAST_PIPELINES = leastBy(Comparator.comparingInt(MediaServer::getPipelineCount));
+
+  PlacementPolicy LEAST_ENDPOINTS = leastBy(Comparator.comparingInt(MediaServer::getEndpointCount));
+
+  PlacementPolicy CPU_LOAD = leastBy(Comparator.comparingDouble(MediaServer::getCpuLoad));
+
+  /**
+   * @param servers the available servers, never empty
+   */
+  MediaServer select(List<MediaServer> servers);
+
+  static PlacementPolicy leastBy(final Comparator<MediaServer> comparator) {
+    return servers -> {
+      MediaServer selected = servers.get(0);
+      for (int i = 1; i < servers.size(); i++) {
+        if (comparator.compare(servers.get(i), selected) < 0) {
+          selected = servers.get(i);
+        }
+      }
+      return selected;
+    };
+  }
+
+  /**
+   * @param name one of least-pipelines, least-endpoints or cpu-load
+   */
+  static PlacementPolicy named(String name) {
+    switch (name) {
+      case "least-pipelines":
+        return LEAST_PIPELINES;
+      case "least-endpoints":
+        return LEAST_ENDPOINTS;
+      case "cpu-load":
+        return CPU_LOAD;
+      default:
+        throw new IllegalArgumentException("Unknown placement policy '" + name + "'");
+    }
+  }
+}
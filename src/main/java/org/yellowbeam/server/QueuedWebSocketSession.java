@@ -0,0 +1,229 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+/**
+ * WebSocket session whose {@link #sendMessage} never blocks. Messages are appended to a bounded
+ * queue and written to the underlying session by a single drain task, so they leave in the order
+ * they were sent and no two threads ever write to the session at the same time.
+ *
+ * When the queue is full the {@link OverflowPolicy} decides what to give up. A client that stops
+ * reading blocks the drain thread writing to it, so a session whose write takes longer than the
+ * send time limit is closed, which also frees the thread for the other sessions.
+ */
+public class QueuedWebSocketSession extends WebSocketSessionDecorator {
+
+  private static final Logger log = LoggerFactory.getLogger(QueuedWebSocketSession.class);
+
+  private static final String ICE_CANDIDATE_PREFIX = "{\"id\":\"iceCandidate";
+
+  public enum OverflowPolicy {
+    /** Discard the oldest queued ICE candidate, closing the session if there is none. */
+    DROP_OLDEST_CANDIDATE,
+    /** Close the session, the client is too slow to keep up. */
+    CLOSE_SESSION
+  }
+
+  private final Executor drainExecutor;
+  private final int capacity;
+  private final OverflowPolicy overflowPolicy;
+  private final long sendTimeLimitNanos;
+
+  private final ArrayDeque<WebSocketMessage<?>> queue = new ArrayDeque<>();
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private volatile boolean overflowed;
+  private volatile long lastSeenNanos = System.nanoTime();
+  // When the write in progress started, 0 when none is
+  private volatile long sendStartNanos;
+  private final AtomicBoolean stalled = new AtomicBoolean();
+
+  public QueuedWebSocketSession(WebSocketSession delegate, Executor drainExecutor, int capacity,
+      OverflowPolicy overflowPolicy) {
+    this(delegate, drainExecutor, capacity, overflowPolicy, 0);
+  }
+
+  /**
+   * @param sendTimeLimitMillis time a single write may take before the session is closed, 0 for
+   *          no limit
+   */
+  public QueuedWebSocketSession(WebSocketSession delegate, Executor drainExecutor, int capacity,
+      OverflowPolicy overflowPolicy, long sendTimeLimitMillis) {
+    super(delegate);
+    this.drainExecutor = drainExecutor;
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.sendTimeLimitNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeLimitMillis);
+  }
+
+  @Override
+  public void sendMessage(WebSocketMessage<?> message) throws IOException {
+    if (overflowed || closeIfStalled()) {
+      return;
+    }
+
+    synchronized (queue) {
+      if (queue.size() >= capacity && !dropOldestCandidate()) {
+        overflowed = true;
+        queue.clear();
+      } else {
+        queue.add(message);
+      }
+    }
+
+    if (overflowed) {
+      log.warn("Outbound queue of session '{}' is full, closing it", getId());
+      drainExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            getDelegate().close(CloseStatus.SESSION_NOT_RELIABLE);
+          } catch (IOException e) {
+            log.debug(e.getMessage());
+          }
+        }
+      });
+    } else if (draining.compareAndSet(false, true)) {
+      drainExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      });
+    }
+  }
+
+  /**
+   * Closes the session if its current write has exceeded the send time limit. It runs on the
+   * calling thread, as the drain thread is the one blocked.
+   *
+   * @return true if the session is stalled
+   */
+  public boolean closeIfStalled() {
+    long start = sendStartNanos;
+    if (sendTimeLimitNanos <= 0 || start == 0 || System.nanoTime() - start < sendTimeLimitNanos) {
+      return stalled.get();
+    }
+    if (stalled.compareAndSet(false, true)) {
+      overflowed = true;
+      synchronized (queue) {
+        queue.clear();
+      }
+      log.warn("Write to session '{}' takes longer than {} ms, closing it", getId(),
+          TimeUnit.NANOSECONDS.toMillis(sendTimeLimitNanos));
+      try {
+        getDelegate().close(CloseStatus.SESSION_NOT_RELIABLE);
+      } catch (IOException | RuntimeException e) {
+        log.debug(e.getMessage());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records that the client is still there: it sent a message or answered a ping.
+   */
+  public void touch() {
+    lastSeenNanos = System.nanoTime();
+  }
+
+  /**
+   * @return {@link System#nanoTime()} when the client was last heard from
+   */
+  public long getLastSeenNanos() {
+    return lastSeenNanos;
+  }
+
+  public int getQueueSize() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  private boolean dropOldestCandidate() {
+    if (overflowPolicy != OverflowPolicy.DROP_OLDEST_CANDIDATE) {
+      return false;
+    }
+    for (Iterator<WebSocketMessage<?>> it = queue.iterator(); it.hasNext();) {
+      WebSocketMessage<?> queued = it.next();
+      if (queued instanceof TextMessage
+          && ((TextMessage) queued).getPayload().startsWith(ICE_CANDIDATE_PREFIX)) {
+        it.remove();
+        log.debug("Dropped queued ICE candidate for session '{}'", getId());
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private WebSocketMessage<?> poll() {
+    synchronized (queue) {
+      return queue.poll();
+    }
+  }
+
+  private void drain() {
+    try {
+      WebSocketMessage<?> message;
+      while ((message = poll()) != null) {
+        if (!getDelegate().isOpen()) {
+          synchronized (queue) {
+            queue.clear();
+          }
+          return;
+        }
+        sendStartNanos = System.nanoTime();
+        try {
+          getDelegate().sendMessage(message);
+        } catch (IOException | RuntimeException e) {
+          log.debug("Error sending message to session '{}': {}", getId(), e.getMessage());
+        } finally {
+          sendStartNanos = 0;
+        }
+      }
+    } finally {
+      draining.set(false);
+      boolean pending;
+      synchronized (queue) {
+        pending = !queue.isEmpty();
+      }
+      if (pending && draining.compareAndSet(false, true)) {
+        drainExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            drain();
+          }
+        });
+      }
+    }
+  }
+}
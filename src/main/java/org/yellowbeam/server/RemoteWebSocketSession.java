@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * A client connected to another signaling node, whose frames were forwarded to this one. What is
+ * sent to it is delivered back through the {@link SignalingState}.
+ *
+ * Session IDs are only unique within a node, so the ID of a remote session is qualified with its
+ * node ({@code id@node}) and cannot collide with a local session in the maps of this node. The
+ * bare ID is only used in the messages sent back to the node of the client.
+ */
+public class RemoteWebSocketSession implements WebSocketSession {
+
+  private final SignalingState state;
+  private final String node;
+  private final String id;
+  private final String remoteId;
+  private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+  private volatile boolean open = true;
+
+  /**
+   * @param node node the client is connected to
+   * @param remoteId ID of the session on that node
+   */
+  public RemoteWebSocketSession(SignalingState state, String node, String remoteId) {
+    this.state = state;
+    this.node = node;
+    this.remoteId = remoteId;
+    this.id = idOf(node, remoteId);
+  }
+
+  /**
+   * @return the ID this node knows a session of another node by
+   */
+  public static String idOf(String node, String remoteId) {
+    return remoteId + "@" + node;
+  }
+
+  public String getNode() {
+    return node;
+  }
+
+  /**
+   * @return ID of the session on the node of the client
+   */
+  public String getRemoteId() {
+    return remoteId;
+  }
+
+  /**
+   * Tells the node of the client that its frames no longer need to be forwarded here.
+   */
+  public void release() {
+    if (open) {
+      state.send(node, new RoutedMessage(RoutedMessage.Type.RELEASE, state.getNodeId(), remoteId,
+          null, null));
+    }
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public void sendMessage(WebSocketMessage<?> message) throws IOException {
+    if (!open) {
+      throw new IOException("Session " + id + " is closed");
+    }
+    state.send(node, new RoutedMessage(RoutedMessage.Type.DELIVER, state.getNodeId(), remoteId,
+        null, message.getPayload().toString()));
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Only stops sending to the client, its connection belongs to the other node.
+   */
+  @Override
+  public void close() {
+    open = false;
+  }
+
+  @Override
+  public void close(CloseStatus status) {
+    open = false;
+  }
+
+  @Override
+  public Map<String, Object> getAttributes() {
+    return attributes;
+  }
+
+  @Override
+  public URI getUri() {
+    return null;
+  }
+
+  @Override
+  public HttpHeaders getHandshakeHeaders() {
+    return new HttpHeaders();
+  }
+
+  @Override
+  public Principal getPrincipal() {
+    return null;
+  }
+
+  @Override
+  public InetSocketAddress getLocalAddress() {
+    return null;
+  }
+
+  @Override
+  public InetSocketAddress getRemoteAddress() {
+    return null;
+  }
+
+  @Override
+  public String getAcceptedProtocol() {
+    return null;
+  }
+
+  @Override
+  public void setTextMessageSizeLimit(int messageSizeLimit) {
+  }
+
+  @Override
+  public int getTextMessageSizeLimit() {
+    return 0;
+  }
+
+  @Override
+  public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+  }
+
+  @Override
+  public int getBinaryMessageSizeLimit() {
+    return 0;
+  }
+
+  @Override
+  public List<WebSocketExtension> getExtensions() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public String toString() {
+    return id;
+  }
+}
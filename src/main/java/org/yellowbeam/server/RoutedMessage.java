@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.io.Serializable;
+
+/**
+ * A message sent from one signaling node to another through the {@link SignalingState}. A
+ * session whose call or stream is handled by another node has its signaling frames forwarded
+ * there, and the replies delivered back to the node holding its WebSocket.
+ */
+public final class RoutedMessage implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public enum Type {
+    /** A frame received from a client, to be handled by the node hosting its call or stream */
+    FORWARD,
+    /** A frame to be sent to a client connected to the receiving node */
+    DELIVER,
+    /** The client closed its connection to the sending node */
+    CLOSED,
+    /** The sending node no longer hosts anything for the session, so it is handled locally */
+    RELEASE
+  }
+
+  private final Type type;
+  private final String node;
+  private final String sessionId;
+  private final String userName;
+  private final String payload;
+
+  /**
+   * @param node ID of the sending node
+   * @param userName name the client registered with on the sending node, if any
+   */
+  public RoutedMessage(Type type, String node, String sessionId, String userName,
+      String payload) {
+    this.type = type;
+    this.node = node;
+    this.sessionId = sessionId;
+    this.userName = userName;
+    this.payload = payload;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getNode() {
+    return node;
+  }
+
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  public String getUserName() {
+    return userName;
+  }
+
+  public String getPayload() {
+    return payload;
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + sessionId + "@" + node;
+  }
+}
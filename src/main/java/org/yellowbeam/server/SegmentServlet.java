@@ -0,0 +1,291 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the stream recordings found under the recording directory, at {@code /recordings/}.
+ * When the servlet container offers sendfile the file is handed to it. On a plain HTTP connector
+ * it is then transferred to the socket with {@link FileChannel#transferTo}, without passing
+ * through the JVM; over TLS, as this application is configured by default, the container reads
+ * it into its own buffers to encrypt it, so no path is zero-copy there. Without sendfile, a
+ * finished file is written from a memory-mapped region shared through a
+ * {@link MappedSegmentCache}, which saves reading it from disk again for every request but still
+ * copies it into the container's buffers. Files still being recorded, and files too large to be
+ * mapped, are transferred from the file channel.
+ *
+ * A single byte range is honored, so players can seek, as are conditional requests on the ETag
+ * and the modification time. A request for several ranges gets the whole file.
+ */
+public class SegmentServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  /**
+   * Files modified this recently may still be being recorded, so clients must revalidate them.
+   */
+  private static final long GROWING_MILLIS = 10000;
+
+  private static final long[] UNSATISFIABLE = new long[0];
+
+  private final transient Path root;
+  private final transient MappedSegmentCache cache;
+  private final int maxAgeSeconds;
+
+  /**
+   * @param root directory the recordings are served from, null if there are none
+   * @param maxAgeSeconds time clients may cache a finished recording without revalidating it
+   */
+  public SegmentServlet(Path root, MappedSegmentCache cache, int maxAgeSeconds) {
+    this.root = root != null ? root.toAbsolutePath().normalize() : null;
+    this.cache = cache;
+    this.maxAgeSeconds = maxAgeSeconds;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    serve(request, response, true);
+  }
+
+  @Override
+  protected void doHead(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    serve(request, response, false);
+  }
+
+  private void serve(HttpServletRequest request, HttpServletResponse response, boolean content)
+      throws IOException {
+    Path file = resolve(request.getPathInfo());
+    BasicFileAttributes attributes = null;
+    if (file != null) {
+      try {
+        attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      } catch (NoSuchFileException e) {
+        // Not found
+      }
+    }
+    if (attributes == null || !attributes.isRegularFile()) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    long size = attributes.size();
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", lastModified);
+    response.setHeader("Accept-Ranges", "bytes");
+    response.setHeader("Cache-Control",
+        System.currentTimeMillis() - lastModified < GROWING_MILLIS ? "no-cache"
+            : "public, max-age=" + maxAgeSeconds);
+
+    if (notModified(request, etag, lastModified)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    long start = 0;
+    long end = size;
+    String range = request.getHeader("Range");
+    if (range != null && rangeApplies(request, etag, lastModified)) {
+      long[] bounds = parseRange(range, size);
+      if (bounds == UNSATISFIABLE) {
+        response.setHeader("Content-Range", "bytes */" + size);
+        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      } else if (bounds != null) {
+        start = bounds[0];
+        end = bounds[1];
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + size);
+      }
+    }
+    response.setContentType(contentType(file));
+    response.setContentLengthLong(end - start);
+
+    if (content && end > start) {
+      write(request, response, file, size, lastModified, start, end);
+    }
+  }
+
+  /**
+   * @return the file a request path points to, or null if it is outside the recordings
+   */
+  private Path resolve(String path) {
+    if (root == null || path == null || path.length() < 2) {
+      return null;
+    }
+    Path file = root.resolve(path.substring(1)).normalize();
+    return file.startsWith(root) ? file : null;
+  }
+
+  private static boolean notModified(HttpServletRequest request, String etag,
+      long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long ifModifiedSince = dateHeader(request, "If-Modified-Since");
+    return ifModifiedSince >= 0 && ifModifiedSince >= lastModified / 1000 * 1000;
+  }
+
+  /**
+   * @return false if an If-Range header asks for the whole file because it has changed
+   */
+  private static boolean rangeApplies(HttpServletRequest request, String etag,
+      long lastModified) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return ifRange.equals(etag);
+    }
+    return dateHeader(request, "If-Range") == lastModified / 1000 * 1000;
+  }
+
+  private static long dateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return start and end (exclusive) of the requested range, {@link #UNSATISFIABLE} if it is
+   *         beyond the end of the file, or null if the whole file must be sent
+   */
+  private static long[] parseRange(String header, long size) {
+    if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+      return null;
+    }
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      if (dash == 0) {
+        long suffix = Long.parseLong(spec.substring(1).trim());
+        if (suffix <= 0 || size == 0) {
+          return UNSATISFIABLE;
+        }
+        return new long[] { Math.max(0, size - suffix), size };
+      }
+      long start = Long.parseLong(spec.substring(0, dash).trim());
+      String last = spec.substring(dash + 1).trim();
+      long end = size;
+      if (!last.isEmpty()) {
+        long lastByte = Long.parseLong(last);
+        if (lastByte < start) {
+          return null;
+        }
+        end = Math.min(size, lastByte + 1);
+      }
+      if (start >= size) {
+        return UNSATISFIABLE;
+      }
+      return new long[] { start, end };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private void write(HttpServletRequest request, HttpServletResponse response, Path file,
+      long size, long lastModified, long start, long end) throws IOException {
+    if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      request.setAttribute(SENDFILE_FILENAME, file.toString());
+      request.setAttribute(SENDFILE_START, start);
+      request.setAttribute(SENDFILE_END, end);
+      return;
+    }
+
+    WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+    // A growing file would be mapped again on every request
+    boolean growing = System.currentTimeMillis() - lastModified < GROWING_MILLIS;
+    ByteBuffer mapped = growing ? null : cache.get(file, size, lastModified);
+    if (mapped != null) {
+      mapped.limit((int) end);
+      mapped.position((int) start);
+      while (mapped.hasRemaining()) {
+        out.write(mapped);
+      }
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long position = start;
+      while (position < end) {
+        long sent = channel.transferTo(position, end - position, out);
+        if (sent <= 0) {
+          throw new IOException("Recording " + file + " was truncated");
+        }
+        position += sent;
+      }
+    }
+  }
+
+  private static String contentType(Path file) {
+    String name = file.getFileName().toString();
+    String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+    switch (extension) {
+      case "webm":
+        return "video/webm";
+      case "mp4":
+        return "video/mp4";
+      case "m4s":
+        return "video/iso.segment";
+      case "ts":
+        return "video/mp2t";
+      case "m3u8":
+        return "application/vnd.apple.mpegurl";
+      case "mpd":
+        return "application/dash+xml";
+      default:
+        return "application/octet-stream";
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PingMessage;
+
+/**
+ * Finds and releases what clients that went away without a clean close leave behind. Every pass
+ * it:
+ * <ul>
+ * <li>pings the sessions that have been silent for a whole interval, and closes those that did
+ * not answer within the timeout, which releases their calls and streams as any other close;</li>
+ * <li>asks the {@link CallHandler} to release the state still kept for sessions that are no
+ * longer open, and the calls, streams and viewers a failed setup left inconsistent;</li>
+ * <li>lists the pipelines each media server actually has and releases, a batch at a time, those
+ * this node created that no call, stream or pooled entry knows about any longer. Pipelines of
+ * other signaling nodes or other applications sharing the server are left alone. A pipeline has
+ * to be unknown on two passes in a row, so one still being set up is never taken for an
+ * orphan.</li>
+ * </ul>
+ */
+public class SessionReaper {
+
+  private static final Logger log = LoggerFactory.getLogger(SessionReaper.class);
+
+  private final CallHandler handler;
+  private final OutboundSessions sessions;
+  private final MediaServerPool servers;
+  private final PipelinePool pipelinePool;
+  private final long pingNanos;
+  private final long timeoutNanos;
+  private final int batchSize;
+  private final ScheduledExecutorService scheduler;
+
+  private final AtomicLong closedSessions = new AtomicLong();
+  private final AtomicLong staleSessions = new AtomicLong();
+  private final AtomicLong releasedPipelines = new AtomicLong();
+
+  // Only used by the scheduler thread: unknown pipelines found on the last pass
+  private Set<String> suspects = new HashSet<>();
+
+  /**
+   * @param intervalMillis time between passes, 0 disables the reaper
+   * @param timeoutMillis time without hearing from a client before its session is closed
+   * @param batchSize orphan pipelines released per media server on each pass, 0 leaves them alone
+   */
+  public SessionReaper(CallHandler handler, OutboundSessions sessions, MediaServerPool servers,
+      PipelinePool pipelinePool, long intervalMillis, long timeoutMillis, int batchSize) {
+    this.handler = handler;
+    this.sessions = sessions;
+    this.servers = servers;
+    this.pipelinePool = pipelinePool;
+    this.pingNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.batchSize = batchSize;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "session-reaper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (intervalMillis > 0) {
+      scheduler.scheduleWithFixedDelay(this::reap, intervalMillis, intervalMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @return silent sessions closed
+   */
+  public long getClosedSessions() {
+    return closedSessions.get();
+  }
+
+  /**
+   * @return closed sessions whose leftover state was released
+   */
+  public long getStaleSessions() {
+    return staleSessions.get();
+  }
+
+  /**
+   * @return media server pipelines released as orphans
+   */
+  public long getReleasedPipelines() {
+    return releasedPipelines.get();
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private void reap() {
+    try {
+      checkSessions();
+      staleSessions.addAndGet(handler.reapStale());
+      if (batchSize > 0) {
+        releaseOrphans();
+      }
+    } catch (Throwable t) {
+      log.error("Error reaping stale sessions", t);
+    }
+  }
+
+  private void checkSessions() {
+    long now = System.nanoTime();
+    for (QueuedWebSocketSession session : sessions.getSessions()) {
+      if (session.getDelegate() instanceof RemoteWebSocketSession) {
+        continue;  // Watched by the node the client is connected to
+      }
+      long silent = now - session.getLastSeenNanos();
+      try {
+        if (silent > timeoutNanos && session.isOpen()) {
+          log.info("Closing session '{}', silent for {} ms", session.getId(),
+              TimeUnit.NANOSECONDS.toMillis(silent));
+          closedSessions.incrementAndGet();
+          session.getDelegate().close(CloseStatus.SESSION_NOT_RELIABLE);
+        } else if (silent > timeoutNanos) {
+          // Closed on an earlier pass, but the transport never reported it
+          handler.afterConnectionClosed(session, CloseStatus.SESSION_NOT_RELIABLE);
+        } else if (silent > pingNanos) {
+          session.sendMessage(new PingMessage());
+        }
+      } catch (IOException e) {
+        log.debug("Error checking session '{}': {}", session.getId(), e.getMessage());
+      } catch (Exception e) {
+        log.warn("Error closing session '{}'", session.getId(), e);
+      }
+    }
+  }
+
+  private void releaseOrphans() {
+    // Listed before the known pipelines are collected, so a pipeline created in between is known
+    long listedAt = System.nanoTime();
+    List<Map.Entry<MediaServer, List<MediaPipeline>>> listed = new ArrayList<>();
+    for (MediaServer server : servers.getServers()) {
+      try {
+        listed.add(new AbstractMap.SimpleImmutableEntry<>(server,
+            server.getClient().getServerManager().getPipelines()));
+      } catch (RuntimeException e) {
+        log.warn("Could not list the pipelines of {}: {}", server, e.getMessage());
+      }
+    }
+    Set<String> known = handler.getPipelineIds();
+    known.addAll(pipelinePool.getPipelineIds());
+
+    Set<String> unknown = new HashSet<>();
+    for (Map.Entry<MediaServer, List<MediaPipeline>> entry : listed) {
+      MediaServer server = entry.getKey();
+      Set<String> present = new HashSet<>();
+      int released = 0;
+      for (MediaPipeline pipeline : entry.getValue()) {
+        String id = pipeline.getId();
+        present.add(id);
+        if (known.contains(id) || !server.isOwned(id)) {
+          continue;
+        }
+        if (!suspects.contains(id) || released >= batchSize) {
+          unknown.add(id);
+          continue;
+        }
+        released++;
+        releasedPipelines.incrementAndGet();
+        pipeline.release(new Continuation<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+          }
+
+          @Override
+          public void onError(Throwable cause) {
+            log.debug("Could not release orphan pipeline '{}': {}", id, cause.getMessage());
+          }
+        });
+      }
+      if (released > 0) {
+        log.info("Released {} orphan pipelines on {}", released, server);
+      }
+      server.retainOwned(present, listedAt);
+    }
+    suspects = unknown;
+  }
+}
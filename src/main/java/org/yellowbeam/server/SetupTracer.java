@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts the traces of call and viewer setups and hands them to an exporter once they end. Each
+ * trace has a root span for the whole setup, tagged with the session ID and the stream name, and a
+ * child span for every request made to the media server on the way. Without an exporter tracing
+ * is disabled and every span is {@link TraceSpan#NOOP}.
+ */
+public class SetupTracer {
+
+  private static final Logger log = LoggerFactory.getLogger(SetupTracer.class);
+
+  private final SpanExporter exporter;
+
+  /**
+   * @param exporter where traces are sent, null disables tracing
+   */
+  public SetupTracer(SpanExporter exporter) {
+    this.exporter = exporter;
+  }
+
+  /**
+   * @param exporter one of none, memory or file
+   * @param file file the traces are appended to by the file exporter
+   */
+  public static SetupTracer create(String exporter, String file, String serviceName) {
+    switch (exporter) {
+      case "none":
+        return new SetupTracer(null);
+      case "memory":
+        return new SetupTracer(new InMemorySpanExporter(10000));
+      case "file":
+        try {
+          return new SetupTracer(new OtlpJsonFileExporter(Paths.get(file), serviceName));
+        } catch (IOException e) {
+          throw new UncheckedIOException("Cannot open trace file " + file, e);
+        }
+      default:
+        throw new IllegalArgumentException("Unknown span exporter '" + exporter + "'");
+    }
+  }
+
+  public boolean isEnabled() {
+    return exporter != null;
+  }
+
+  public SpanExporter getExporter() {
+    return exporter;
+  }
+
+  /**
+   * Starts a trace whose root span becomes the current span of this thread, until it ends.
+   */
+  public TraceSpan startTrace(String name) {
+    return exporter != null ? TraceSpan.startTrace(this, name) : TraceSpan.NOOP;
+  }
+
+  void export(List<TraceSpan> spans) {
+    try {
+      exporter.export(spans);
+    } catch (RuntimeException e) {
+      log.warn("Could not export trace: {}", e.getMessage());
+    }
+  }
+
+  public void shutdown() {
+    if (exporter != null) {
+      exporter.shutdown();
+    }
+  }
+}
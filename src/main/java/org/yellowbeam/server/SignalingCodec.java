@@ -0,0 +1,239 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kurento.client.IceCandidate;
+import org.springframework.web.socket.TextMessage;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads and writes the messages of the signaling WebSocket without building intermediate JSON
+ * trees on the hot path. Frames are decoded in a single streaming pass into the typed fields of a
+ * {@link SignalingMessage}, ICE candidates going straight to {@link IceCandidate}. Candidate
+ * messages are written directly to the output, and responses that never change are serialized
+ * once and shared.
+ */
+public final class SignalingCodec {
+
+  public static final TextMessage TOO_MANY_PENDING = new TextMessage("{\"id\":\"error\","
+      + "\"response\":\"rejected\",\"message\":\"Too many pending requests\"}");
+  public static final TextMessage STOP_COMMUNICATION =
+      new TextMessage("{\"id\":\"stopCommunication\"}");
+
+  private static final ConcurrentHashMap<String, TextMessage> rejected = new ConcurrentHashMap<>();
+
+  private SignalingCodec() {
+  }
+
+  /**
+   * @throws JsonParseException if the frame is not a JSON object with an id
+   */
+  public static SignalingMessage decode(String payload) {
+    try {
+      JsonReader reader = new JsonReader(new StringReader(payload));
+      SignalingMessage.Builder message = new SignalingMessage.Builder();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (reader.peek() == JsonToken.NULL) {
+          reader.nextNull();
+          continue;
+        }
+        switch (name) {
+          case "id":
+            message.id(readString(reader));
+            break;
+          case "name":
+            message.name(readString(reader));
+            break;
+          case "from":
+            message.from(readString(reader));
+            break;
+          case "to":
+            message.to(readString(reader));
+            break;
+          case "callResponse":
+            message.callResponse(readString(reader));
+            break;
+          case "sdpOffer":
+            message.sdpOffer(readString(reader));
+            break;
+          case "stream":
+            message.stream(readString(reader));
+            break;
+          case "video":
+            message.video(readString(reader));
+            break;
+          case "replaces":
+            message.replaces(readString(reader));
+            break;
+          case "composite":
+            message.composite(reader.peek() == JsonToken.BOOLEAN ? reader.nextBoolean()
+                : Boolean.parseBoolean(reader.nextString()));
+            break;
+          case "bandwidth":
+            message.bandwidth(reader.nextInt());
+            break;
+          case "query":
+            message.query(readString(reader));
+            break;
+          case "match":
+            message.match(readString(reader));
+            break;
+          case "cursor":
+            message.cursor(readString(reader));
+            break;
+          case "limit":
+            message.limit(reader.nextInt());
+            break;
+          case "candidate":
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+              List<IceCandidate> candidates = new ArrayList<>(1);
+              candidates.add(readCandidate(reader));
+              message.candidates(candidates);
+            } else {
+              reader.skipValue();
+            }
+            break;
+          case "candidates":
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+              List<IceCandidate> candidates = new ArrayList<>();
+              reader.beginArray();
+              while (reader.hasNext()) {
+                candidates.add(readCandidate(reader));
+              }
+              reader.endArray();
+              message.candidates(candidates);
+            } else {
+              reader.skipValue();
+            }
+            break;
+          default:
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.endObject();
+      return message.build();
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      throw new JsonParseException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Reads a scalar as a string, as {@code JsonElement.getAsString()} does.
+   */
+  private static String readString(JsonReader reader) throws IOException {
+    return reader.peek() == JsonToken.BOOLEAN ? String.valueOf(reader.nextBoolean())
+        : reader.nextString();
+  }
+
+  private static IceCandidate readCandidate(JsonReader reader) throws IOException {
+    String candidate = null;
+    String sdpMid = null;
+    int sdpMLineIndex = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+      } else if ("candidate".equals(name)) {
+        candidate = reader.nextString();
+      } else if ("sdpMid".equals(name)) {
+        sdpMid = reader.nextString();
+      } else if ("sdpMLineIndex".equals(name)) {
+        sdpMLineIndex = reader.nextInt();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return new IceCandidate(candidate, sdpMid, sdpMLineIndex);
+  }
+
+  /**
+   * Writes the candidates found by the media server as a single {@code iceCandidate} message, or
+   * an {@code iceCandidates} one when there are several.
+   *
+   * @param video video of a stream the candidates belong to, null for call endpoints
+   */
+  public static TextMessage encodeCandidates(String video, List<IceCandidate> candidates) {
+    StringWriter out = new StringWriter(160 * candidates.size() + 48);
+    try {
+      JsonWriter writer = new JsonWriter(out);
+      writer.beginObject();
+      if (candidates.size() == 1) {
+        writer.name("id").value("iceCandidate");
+        writer.name("candidate");
+        writeCandidate(writer, candidates.get(0));
+      } else {
+        writer.name("id").value("iceCandidates");
+        writer.name("candidates").beginArray();
+        for (IceCandidate candidate : candidates) {
+          writeCandidate(writer, candidate);
+        }
+        writer.endArray();
+      }
+      if (video != null) {
+        writer.name("video").value(video);
+      }
+      writer.endObject();
+      writer.flush();
+    } catch (IOException e) {
+      // Never thrown by a StringWriter
+      throw new IllegalStateException(e);
+    }
+    return new TextMessage(out.toString());
+  }
+
+  private static void writeCandidate(JsonWriter writer, IceCandidate candidate)
+      throws IOException {
+    writer.beginObject();
+    writer.name("candidate").value(candidate.getCandidate());
+    writer.name("sdpMid").value(candidate.getSdpMid());
+    writer.name("sdpMLineIndex").value(candidate.getSdpMLineIndex());
+    writer.endObject();
+  }
+
+  /**
+   * @return the shared {@code {"id":responseId,"response":"rejected"}} frame
+   */
+  public static TextMessage rejected(String responseId) {
+    TextMessage frame = rejected.get(responseId);
+    if (frame == null) {
+      JsonObject response = new JsonObject();
+      response.addProperty("id", responseId);
+      response.addProperty("response", "rejected");
+      frame = new TextMessage(response.toString());
+      rejected.putIfAbsent(responseId, frame);
+    }
+    return frame;
+  }
+}
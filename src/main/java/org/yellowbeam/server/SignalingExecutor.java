@@ -0,0 +1,280 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs signaling tasks away from the WebSocket container threads. Tasks of the same session are
+ * executed one at a time and in arrival order, tasks of different sessions run in parallel on a
+ * fixed pool of workers.
+ *
+ * Each session has its own queue, and at most one entry per session is ever waiting on the worker
+ * pool, so the pool backlog is bounded by the number of sessions. The per-session backlog is
+ * bounded by {@code maxPendingPerSession}: once reached, new tasks are rejected. Once the last
+ * task of a session has been queued, later tasks of that session are dropped, so callbacks firing
+ * after the session closed do not bring its queue back.
+ *
+ * With virtual threads, each session with pending tasks gets a virtual thread of its own instead
+ * of waiting for a pooled worker. The requests a task makes to the media server block only that
+ * virtual thread, so the number of call setups in progress is no longer bounded by the pool size.
+ * Tasks of a session keep running one at a time and in order, as its queue is drained by a single
+ * thread at a time either way. Virtual threads need Java 21; on older JVMs the fixed pool is used.
+ */
+public class SignalingExecutor {
+
+  private static final Logger log = LoggerFactory.getLogger(SignalingExecutor.class);
+
+  /** Tasks run in a row by a worker before yielding it to other sessions. */
+  private static final int MAX_BATCH = 16;
+
+  /** How long a closed session is remembered, to drop the tasks that arrive after it closed. */
+  private static final long CLOSED_RETENTION_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  private final boolean async;
+  private final boolean virtual;
+  private final int maxPendingPerSession;
+  private final ExecutorService workers;
+  private final ConcurrentHashMap<String, SessionQueue> queues = new ConcurrentHashMap<>();
+  // Sessions whose last task was queued, with the time it was
+  private final ConcurrentHashMap<String, Long> closed = new ConcurrentHashMap<>();
+  private volatile long closedPrunedAt = System.nanoTime();
+
+  /**
+   * @param async when false, tasks run inline on the calling thread
+   * @param threads number of worker threads
+   * @param maxPendingPerSession maximum number of queued tasks for a single session
+   */
+  public SignalingExecutor(boolean async, int threads, int maxPendingPerSession) {
+    this(async, false, threads, maxPendingPerSession);
+  }
+
+  /**
+   * @param async when false, tasks run inline on the calling thread
+   * @param virtualThreads run the tasks on virtual threads, when the JVM has them
+   * @param threads number of worker threads, when not running on virtual threads
+   * @param maxPendingPerSession maximum number of queued tasks for a single session
+   */
+  public SignalingExecutor(boolean async, boolean virtualThreads, int threads,
+      int maxPendingPerSession) {
+    this.async = async;
+    this.maxPendingPerSession = maxPendingPerSession;
+    ExecutorService virtualWorkers = async && virtualThreads ? newVirtualThreadExecutor() : null;
+    if (async && virtualThreads && virtualWorkers == null) {
+      log.warn("Virtual threads need Java 21, running signaling on {} platform threads", threads);
+    }
+    this.virtual = virtualWorkers != null;
+    this.workers = virtualWorkers != null ? virtualWorkers
+        : async ? Executors.newFixedThreadPool(threads, new SignalingThreadFactory()) : null;
+  }
+
+  public boolean isAsync() {
+    return async;
+  }
+
+  /**
+   * @return whether tasks run on virtual threads
+   */
+  public boolean isVirtual() {
+    return virtual;
+  }
+
+  /**
+   * @return an executor starting a named virtual thread per task, or null if the JVM has no
+   *         virtual threads
+   */
+  static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderType.getMethod("name", String.class, long.class)
+          .invoke(builder, "signaling-virtual-", 1L);
+      ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+      return (ExecutorService) Executors.class
+          .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * Queues a task for the given session.
+   *
+   * @return false if the session already has too many pending tasks or is closed, and the task
+   *         was rejected
+   */
+  public boolean execute(String sessionId, Runnable task) {
+    if (!async) {
+      task.run();
+      return true;
+    }
+
+    // Checked and queued under the map lock of the session, so the task is either rejected or
+    // queued ahead of the last task, never on a queue created after the session closed
+    final boolean[] rejected = new boolean[1];
+    SessionQueue queue = queues.compute(sessionId, (id, current) -> {
+      if (closed.containsKey(id)) {
+        rejected[0] = true;
+        return current;
+      }
+      SessionQueue q = current != null ? current : new SessionQueue(id);
+      if (q.pending.incrementAndGet() > maxPendingPerSession) {
+        q.pending.decrementAndGet();
+        rejected[0] = true;
+      } else {
+        q.tasks.add(task);
+      }
+      return q;
+    });
+    if (rejected[0]) {
+      if (closed.containsKey(sessionId)) {
+        log.debug("Dropping signaling task for closed session '{}'", sessionId);
+      } else {
+        log.warn("Rejecting signaling task for session '{}': {} tasks pending", sessionId,
+            maxPendingPerSession);
+      }
+      return false;
+    }
+    schedule(queue);
+    return true;
+  }
+
+  /**
+   * Queues the last task of a session. Once it has run, the session queue is discarded, and
+   * tasks queued for the session with {@link #execute} afterwards are rejected. A session may be
+   * given more than one last task, to release what was left behind after the first one ran.
+   */
+  public void executeLast(final String sessionId, final Runnable task) {
+    if (!async) {
+      task.run();
+      return;
+    }
+
+    long now = System.nanoTime();
+    if (now - closedPrunedAt > CLOSED_RETENTION_NANOS / 10) {
+      closedPrunedAt = now;
+      closed.values().removeIf(closedAt -> now - closedAt > CLOSED_RETENTION_NANOS);
+    }
+    closed.put(sessionId, now);
+    SessionQueue queue = queues.compute(sessionId, (id, current) -> {
+      final SessionQueue q = current != null ? current : new SessionQueue(id);
+      q.pending.incrementAndGet();
+      q.tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            queues.remove(sessionId, q);
+          }
+        }
+      });
+      return q;
+    });
+    schedule(queue);
+  }
+
+  /**
+   * @return whether the last task of the session was queued
+   */
+  public boolean isClosed(String sessionId) {
+    return closed.containsKey(sessionId);
+  }
+
+  public int getPendingTasks(String sessionId) {
+    SessionQueue queue = queues.get(sessionId);
+    return queue != null ? queue.pending.get() : 0;
+  }
+
+  public void shutdown() {
+    if (workers != null) {
+      workers.shutdown();
+      try {
+        if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+          workers.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        workers.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void schedule(SessionQueue queue) {
+    if (queue.scheduled.compareAndSet(false, true)) {
+      workers.execute(queue);
+    }
+  }
+
+  private class SessionQueue implements Runnable {
+
+    private final String sessionId;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    SessionQueue(String sessionId) {
+      this.sessionId = sessionId;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Runnable task;
+        int executed = 0;
+        while (executed < MAX_BATCH && (task = tasks.poll()) != null) {
+          pending.decrementAndGet();
+          executed++;
+          try {
+            task.run();
+          } catch (Throwable t) {
+            log.error("Signaling task for session '{}' failed", sessionId, t);
+          }
+        }
+      } finally {
+        scheduled.set(false);
+        if (!tasks.isEmpty()) {
+          schedule(this);
+        }
+      }
+    }
+  }
+
+  private static class SignalingThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "signaling-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
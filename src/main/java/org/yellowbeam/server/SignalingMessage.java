@@ -0,0 +1,313 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.kurento.client.IceCandidate;
+
+import com.google.gson.JsonParseException;
+
+/**
+ * A message received on the signaling WebSocket, decoded by {@link SignalingCodec}. It is
+ * immutable, and holds the fields the handlers read with their types; ICE candidates are decoded
+ * straight into {@link IceCandidate}s. Fields the server does not know are skipped when decoding.
+ */
+public final class SignalingMessage {
+
+  private final String id;
+  private final String name;
+  private final String from;
+  private final String to;
+  private final String callResponse;
+  private final String sdpOffer;
+  private final String stream;
+  private final String video;
+  private final String replaces;
+  private final Boolean composite;
+  private final int bandwidth;
+  private final String query;
+  private final String match;
+  private final String cursor;
+  private final Integer limit;
+  private final List<IceCandidate> candidates;
+
+  private SignalingMessage(Builder builder) {
+    this.id = builder.id;
+    this.name = builder.name;
+    this.from = builder.from;
+    this.to = builder.to;
+    this.callResponse = builder.callResponse;
+    this.sdpOffer = builder.sdpOffer;
+    this.stream = builder.stream;
+    this.video = builder.video;
+    this.replaces = builder.replaces;
+    this.composite = builder.composite;
+    this.bandwidth = builder.bandwidth;
+    this.query = builder.query;
+    this.match = builder.match;
+    this.cursor = builder.cursor;
+    this.limit = builder.limit;
+    this.candidates = builder.candidates != null
+        ? Collections.unmodifiableList(builder.candidates)
+        : Collections.<IceCandidate>emptyList();
+  }
+
+  /**
+   * @return the value of a field the message cannot be handled without
+   * @throws JsonParseException if the message does not have it
+   */
+  public static <T> T require(T value, String field) {
+    if (value == null) {
+      throw new JsonParseException("Message without " + field);
+    }
+    return value;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return name a user registers with
+   */
+  public String getName() {
+    return name;
+  }
+
+  public String getFrom() {
+    return from;
+  }
+
+  public String getTo() {
+    return to;
+  }
+
+  /**
+   * @return {@code accept} or {@code reject}, in the answer to an incoming call
+   */
+  public String getCallResponse() {
+    return callResponse;
+  }
+
+  public String getSdpOffer() {
+    return sdpOffer;
+  }
+
+  public String getStream() {
+    return stream;
+  }
+
+  public String getVideo() {
+    return video;
+  }
+
+  /**
+   * @return video a viewer stops receiving to receive {@link #getVideo()} through the same
+   *         endpoint, or null for a new viewer endpoint
+   */
+  public String getReplaces() {
+    return replaces;
+  }
+
+  /**
+   * @return whether a new stream mixes its videos, or null to use the server default
+   */
+  public Boolean getComposite() {
+    return composite;
+  }
+
+  /**
+   * @return bandwidth reported by a viewer in kbps, 0 if unknown
+   */
+  public int getBandwidth() {
+    return bandwidth;
+  }
+
+  public String getQuery() {
+    return query;
+  }
+
+  /**
+   * @return how {@link #getQuery()} matches the stream names, {@code prefix} or
+   *         {@code substring}
+   */
+  public String getMatch() {
+    return match;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  /**
+   * @return page size asked for, or null for the largest one
+   */
+  public Integer getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return the candidates of an {@code onIceCandidate} or {@code iceCandidates} message
+   */
+  public List<IceCandidate> getCandidates() {
+    return candidates;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder out = new StringBuilder("{id=").append(id);
+    append(out, "name", name);
+    append(out, "from", from);
+    append(out, "to", to);
+    append(out, "callResponse", callResponse);
+    append(out, "stream", stream);
+    append(out, "video", video);
+    append(out, "replaces", replaces);
+    append(out, "composite", composite);
+    append(out, "bandwidth", bandwidth != 0 ? bandwidth : null);
+    append(out, "query", query);
+    append(out, "match", match);
+    append(out, "cursor", cursor);
+    append(out, "limit", limit);
+    if (sdpOffer != null) {
+      out.append(", sdpOffer=(").append(sdpOffer.length()).append(" chars)");
+    }
+    if (!candidates.isEmpty()) {
+      out.append(", candidates=").append(candidates.size());
+    }
+    return out.append('}').toString();
+  }
+
+  private static void append(StringBuilder out, String field, Object value) {
+    if (value != null) {
+      out.append(", ").append(field).append('=').append(value);
+    }
+  }
+
+  /**
+   * Collects the fields while a frame is read.
+   */
+  static final class Builder {
+
+    private String id;
+    private String name;
+    private String from;
+    private String to;
+    private String callResponse;
+    private String sdpOffer;
+    private String stream;
+    private String video;
+    private String replaces;
+    private Boolean composite;
+    private int bandwidth;
+    private String query;
+    private String match;
+    private String cursor;
+    private Integer limit;
+    private List<IceCandidate> candidates;
+
+    Builder id(String id) {
+      this.id = id;
+      return this;
+    }
+
+    Builder name(String name) {
+      this.name = name;
+      return this;
+    }
+
+    Builder from(String from) {
+      this.from = from;
+      return this;
+    }
+
+    Builder to(String to) {
+      this.to = to;
+      return this;
+    }
+
+    Builder callResponse(String callResponse) {
+      this.callResponse = callResponse;
+      return this;
+    }
+
+    Builder sdpOffer(String sdpOffer) {
+      this.sdpOffer = sdpOffer;
+      return this;
+    }
+
+    Builder stream(String stream) {
+      this.stream = stream;
+      return this;
+    }
+
+    Builder video(String video) {
+      this.video = video;
+      return this;
+    }
+
+    Builder replaces(String replaces) {
+      this.replaces = replaces;
+      return this;
+    }
+
+    Builder composite(Boolean composite) {
+      this.composite = composite;
+      return this;
+    }
+
+    Builder bandwidth(int bandwidth) {
+      this.bandwidth = bandwidth;
+      return this;
+    }
+
+    Builder query(String query) {
+      this.query = query;
+      return this;
+    }
+
+    Builder match(String match) {
+      this.match = match;
+      return this;
+    }
+
+    Builder cursor(String cursor) {
+      this.cursor = cursor;
+      return this;
+    }
+
+    Builder limit(Integer limit) {
+      this.limit = limit;
+      return this;
+    }
+
+    Builder candidates(List<IceCandidate> candidates) {
+      this.candidates = candidates;
+      return this;
+    }
+
+    SignalingMessage build() {
+      if (id == null) {
+        throw new JsonParseException("Message without id");
+      }
+      return new SignalingMessage(this);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metrics of the signaling server and of the media it has placed on the Kurento servers, exposed
+ * by Spring Boot Actuator at {@code /actuator/prometheus}. Gauges read the live state when scraped,
+ * so nothing is counted twice on the hot path. Timers measure how long each signaling message
+ * takes to handle, by message id, and the latency of the requests made to the media servers.
+ */
+public class SignalingMetrics {
+
+  /**
+   * Message ids handled by {@link CallHandler}. Anything else is timed as {@code unknown}, so
+   * clients cannot create new time series.
+   */
+  private static final Set<String> MESSAGE_IDS = new HashSet<>(Arrays.asList("register", "call",
+      "incomingCallResponse", "initStream", "discoverStreams", "listStreams", "subscribeStreams",
+      "unsubscribeStreams", "joinStream", "leaveStream", "streamRequest", "viewerResponse",
+      "viewerBandwidth", "onIceCandidate", "iceCandidates", "stop", "stopStream"));
+
+  private final MeterRegistry registry;
+  private final ConcurrentHashMap<String, Timer> messageTimers = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Timer> rpcTimers = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Gauge> viewerGauges = new ConcurrentHashMap<>();
+
+  public SignalingMetrics(MeterRegistry registry, UserRegistry users,
+      OutboundSessions outboundSessions, PipelinePool pipelinePool,
+      MediaServerPool mediaServerPool, AdmissionController admission) {
+    this.registry = registry;
+
+    Gauge.builder("yellowbeam.users", users, UserRegistry::size)
+        .description("Registered users").register(registry);
+    Gauge.builder("yellowbeam.users.in.call", users, u -> u.getUsersInCall().size())
+        .description("Registered users taking part in a call").register(registry);
+    Gauge.builder("yellowbeam.users.streaming", users, u -> u.getUsersStreaming().size())
+        .description("Registered users publishing in a stream").register(registry);
+    Gauge.builder("yellowbeam.ice.candidates.buffered", users, SignalingMetrics::pendingCandidates)
+        .description("Remote ICE candidates waiting for the endpoint of their user")
+        .register(registry);
+    Gauge.builder("yellowbeam.outbound.sessions", outboundSessions, OutboundSessions::size)
+        .description("Open signaling sessions").register(registry);
+    Gauge.builder("yellowbeam.outbound.queued", outboundSessions,
+        OutboundSessions::getQueuedMessages)
+        .description("Messages waiting in the outbound session queues").register(registry);
+
+    FunctionCounter.builder("yellowbeam.pipeline.pool.hits", pipelinePool, PipelinePool::getHits)
+        .description("Calls served with a prewarmed pipeline").register(registry);
+    FunctionCounter.builder("yellowbeam.pipeline.pool.misses", pipelinePool,
+        PipelinePool::getMisses)
+        .description("Calls that had to create their pipeline on demand").register(registry);
+    Gauge.builder("yellowbeam.pipeline.pool.available", pipelinePool, PipelinePool::getAvailable)
+        .description("Prewarmed pipelines ready to be used").register(registry);
+
+    Gauge.builder("yellowbeam.admission.queued", admission, AdmissionController::getQueueLength)
+        .description("Viewers waiting for admission").register(registry);
+    FunctionCounter.builder("yellowbeam.admission.admitted", admission,
+        AdmissionController::getAdmitted)
+        .description("Viewers admitted to create an endpoint").register(registry);
+    FunctionCounter.builder("yellowbeam.admission.rejected", admission,
+        AdmissionController::getRejected)
+        .description("Viewers rejected by admission control").register(registry);
+
+    for (MediaServer server : mediaServerPool.getServers()) {
+      Gauge.builder("yellowbeam.kms.pipelines", server, MediaServer::getPipelineCount)
+          .description("Pipelines placed on the media server").tag("server", server.getUrl())
+          .register(registry);
+      Gauge.builder("yellowbeam.kms.endpoints", server, MediaServer::getEndpointCount)
+          .description("Endpoints placed on the media server").tag("server", server.getUrl())
+          .register(registry);
+    }
+  }
+
+  private static double pendingCandidates(UserRegistry users) {
+    int pending = 0;
+    for (UserSession user : users.getUsers()) {
+      pending += user.getPendingCandidates();
+    }
+    return pending;
+  }
+
+  /**
+   * Registers the gauges of the calls and streams kept by the {@link CallHandler}.
+   *
+   * @param pipelines pipeline of each session in a call, shared by both peers
+   * @param streams pipeline of each live stream
+   */
+  public void monitorCalls(Map<String, StreamPipeline> pipelines,
+      Map<String, StreamPipeline> streams) {
+    Gauge.builder("yellowbeam.pipelines", pipelines,
+        map -> new HashSet<>(map.values()).size())
+        .description("Live call pipelines").register(registry);
+    Gauge.builder("yellowbeam.streams", streams, Map::size)
+        .description("Live streams").register(registry);
+  }
+
+  /**
+   * Registers the counters of what the {@link SessionReaper} found and released.
+   */
+  public void monitorReaper(SessionReaper reaper) {
+    FunctionCounter.builder("yellowbeam.reaper.sessions.closed", reaper,
+        SessionReaper::getClosedSessions)
+        .description("Sessions closed after not answering pings").register(registry);
+    FunctionCounter.builder("yellowbeam.reaper.sessions.stale", reaper,
+        SessionReaper::getStaleSessions)
+        .description("Closed sessions whose leftover state was released").register(registry);
+    FunctionCounter.builder("yellowbeam.reaper.pipelines.released", reaper,
+        SessionReaper::getReleasedPipelines)
+        .description("Orphan media server pipelines released").register(registry);
+  }
+
+  public void streamStarted(String stream, StreamPipeline pipeline) {
+    Gauge gauge = Gauge.builder("yellowbeam.stream.viewers", pipeline,
+        StreamPipeline::getViewerCount)
+        .description("Viewers of the stream").tag("stream", stream).register(registry);
+    viewerGauges.put(stream, gauge);
+  }
+
+  public void streamStopped(String stream) {
+    Gauge gauge = viewerGauges.remove(stream);
+    if (gauge != null) {
+      registry.remove(gauge);
+    }
+  }
+
+  /**
+   * Records the time taken to handle a signaling message.
+   */
+  public void messageHandled(String id, long startNanos) {
+    String tag = MESSAGE_IDS.contains(id) ? id : "unknown";
+    Timer timer = messageTimers.get(tag);
+    if (timer == null) {
+      timer = messageTimers.computeIfAbsent(tag, t -> Timer.builder("yellowbeam.signaling.message")
+          .description("Time taken to handle a signaling message").tag("id", t)
+          .publishPercentileHistogram().register(registry));
+    }
+    timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Runs a request to a media server, recording its latency under the given operation name.
+   */
+  public <T> T timeRpc(String operation, Supplier<T> request) {
+    long start = System.nanoTime();
+    try {
+      return request.get();
+    } finally {
+      rpcTimer(operation).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  public void timeRpc(String operation, Runnable request) {
+    long start = System.nanoTime();
+    try {
+      request.run();
+    } finally {
+      rpcTimer(operation).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private Timer rpcTimer(String operation) {
+    Timer timer = rpcTimers.get(operation);
+    if (timer == null) {
+      timer = rpcTimers.computeIfAbsent(operation, o -> Timer.builder("yellowbeam.kurento.rpc")
+          .description("Latency of the requests made to the media servers").tag("operation", o)
+          .publishPercentileHistogram().register(registry));
+    }
+    return timer;
+  }
+}
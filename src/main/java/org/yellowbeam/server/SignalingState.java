@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * State shared by every signaling node behind the load balancer: which node each user is
+ * connected to and which node hosts each stream, and a channel to send messages to other nodes.
+ * Sessions, pipelines and endpoints stay on the node that created them; the shared state only
+ * tells where they are.
+ */
+public interface SignalingState {
+
+  /**
+   * @return ID of this node, unique in the cluster
+   */
+  String getNodeId();
+
+  /**
+   * Registers a user connected to this node.
+   *
+   * @return false if the name is already registered on any node
+   */
+  boolean registerUser(String name);
+
+  /**
+   * @return the node the user is connected to, or null if it is not registered
+   */
+  String getUserNode(String name);
+
+  void removeUser(String name);
+
+  /**
+   * Registers a stream hosted by this node.
+   *
+   * @return false if the name is already in use on any node
+   */
+  boolean registerStream(String name);
+
+  /**
+   * @return the node hosting the stream, or null if there is no such stream
+   */
+  String getStreamNode(String name);
+
+  void removeStream(String name);
+
+  /**
+   * Sends a message to another node. Messages sent to the same node arrive in order.
+   */
+  void send(String node, RoutedMessage message);
+
+  /**
+   * Sets the handler of the messages sent to this node.
+   */
+  void setReceiver(Consumer<RoutedMessage> receiver);
+
+  void shutdown();
+
+  /**
+   * @param backend one of memory or hazelcast
+   * @param members comma separated addresses of the other nodes, empty to discover them by
+   *          multicast
+   * @param cluster name of the cluster, nodes only join others with the same name
+   */
+  static SignalingState create(String backend, String members, String cluster) {
+    switch (backend) {
+      case "memory":
+        return new InMemorySignalingState();
+      case "hazelcast":
+        List<String> addresses = new ArrayList<>();
+        for (String member : members.split(",")) {
+          if (!member.trim().isEmpty()) {
+            addresses.add(member.trim());
+          }
+        }
+        return new HazelcastSignalingState(addresses, cluster);
+      default:
+        throw new IllegalArgumentException("Unknown signaling state backend '" + backend + "'");
+    }
+  }
+}
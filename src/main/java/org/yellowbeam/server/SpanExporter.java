@@ -0,0 +1,34 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.List;
+
+/**
+ * Receives the traces recorded by {@link SetupTracer}, one list of spans per trace.
+ */
+public interface SpanExporter {
+
+  /**
+   * Called on the signaling thread that ended the trace, so it must not block.
+   */
+  void export(List<TraceSpan> spans);
+
+  void shutdown();
+}
@@ -0,0 +1,286 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Directory of the live streams. The live index is sorted by stream name. Searches never touch it:
+ * they run on an immutable snapshot that is rebuilt at most once per {@code ttlMillis}, or as
+ * soon as a stream starts or stops. Viewer counts in the snapshot may therefore lag behind by up
+ * to the TTL. Looking up a single stream always checks the live index, so a stream is found as
+ * soon as it starts and not after it stops.
+ */
+public class StreamDirectory {
+
+  private final ConcurrentSkipListMap<String, LiveStream> index = new ConcurrentSkipListMap<>();
+  private final long ttlMillis;
+
+  private final AtomicBoolean dirty = new AtomicBoolean(true);
+  private final ReentrantLock refreshLock = new ReentrantLock();
+  private volatile Snapshot snapshot = new Snapshot(Collections.<StreamInfo>emptyList(), 0);
+
+  public StreamDirectory(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+  }
+
+  public void add(String name, StreamPipeline pipeline) {
+    index.put(name, new LiveStream(pipeline, System.currentTimeMillis()));
+    dirty.set(true);
+  }
+
+  public void remove(String name) {
+    if (index.remove(name) != null) {
+      dirty.set(true);
+    }
+  }
+
+  /**
+   * Rebuilds the snapshot on next use, after a live stream changed its sources.
+   */
+  public void invalidate() {
+    dirty.set(true);
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * @return every live stream, sorted by name
+   */
+  public List<StreamInfo> list() {
+    return snapshot().streams;
+  }
+
+  /**
+   * @return the snapshot entry of a stream, a new one if the snapshot is behind the live index,
+   *         or null if the stream is not live
+   */
+  public StreamInfo get(String name) {
+    LiveStream live = index.get(name);
+    if (live == null) {
+      return null;
+    }
+    if (!dirty.get()) {
+      List<StreamInfo> streams = snapshot().streams;
+      int i = firstAfter(streams, name) - 1;
+      if (i >= 0 && streams.get(i).getName().equals(name)
+          && streams.get(i).getStartTime() == live.startTime) {
+        return streams.get(i);
+      }
+    }
+    // Started or changed since the snapshot was built, or being rebuilt by another thread
+    return new StreamInfo(name, live.pipeline, live.startTime);
+  }
+
+  /**
+   * Finds the live streams whose name matches a query.
+   *
+   * @param query text to look for, case insensitive; empty matches every stream
+   * @param substring true to match anywhere in the name, false to match only a prefix
+   * @param cursor name of the last stream of the previous page, null for the first page
+   * @param limit maximum number of streams in the page
+   */
+  public Page search(String query, boolean substring, String cursor, int limit) {
+    List<StreamInfo> streams = snapshot().streams;
+    String needle = query == null ? "" : query.toLowerCase(Locale.ROOT);
+
+    int from = cursor == null ? 0 : firstAfter(streams, cursor);
+    List<StreamInfo> page = new ArrayList<>(Math.min(limit, 64));
+    int i = from;
+    for (; i < streams.size() && page.size() < limit; i++) {
+      StreamInfo info = streams.get(i);
+      if (needle.isEmpty() || (substring ? info.lowerName.contains(needle)
+          : info.lowerName.startsWith(needle))) {
+        page.add(info);
+      }
+    }
+
+    String nextCursor = null;
+    if (page.size() == limit && i < streams.size()) {
+      nextCursor = page.get(page.size() - 1).getName();
+    }
+    return new Page(page, nextCursor);
+  }
+
+  private static int firstAfter(List<StreamInfo> streams, String cursor) {
+    int low = 0;
+    int high = streams.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (streams.get(mid).getName().compareTo(cursor) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private Snapshot snapshot() {
+    Snapshot current = snapshot;
+    if (!dirty.get() && System.currentTimeMillis() - current.createdAt < ttlMillis) {
+      return current;
+    }
+    // A single thread rebuilds it, the rest keep answering with the previous one
+    if (!refreshLock.tryLock()) {
+      return current;
+    }
+    try {
+      dirty.set(false);
+      List<StreamInfo> streams = new ArrayList<>(index.size());
+      for (Map.Entry<String, LiveStream> entry : index.entrySet()) {
+        streams.add(new StreamInfo(entry.getKey(), entry.getValue().pipeline,
+            entry.getValue().startTime));
+      }
+      current = new Snapshot(Collections.unmodifiableList(streams), System.currentTimeMillis());
+      snapshot = current;
+      return current;
+    } finally {
+      refreshLock.unlock();
+    }
+  }
+
+  /**
+   * Immutable description of a live stream, with its JSON form built once.
+   */
+  public static class StreamInfo {
+
+    private final String name;
+    private final String lowerName;
+    private final List<String> participants;
+    private final List<String> videos;
+    private final int viewers;
+    private final long startTime;
+    private final JsonObject json;
+
+    StreamInfo(String name, StreamPipeline pipeline, long startTime) {
+      this.name = name;
+      this.lowerName = name.toLowerCase(Locale.ROOT);
+      List<String> names = new ArrayList<>(2);
+      if (pipeline.getCaller() != null) {
+        names.add(pipeline.getCaller().getName());
+      }
+      if (pipeline.getCallee() != null) {
+        names.add(pipeline.getCallee().getName());
+      }
+      this.participants = Collections.unmodifiableList(names);
+      this.videos = Collections.unmodifiableList(new ArrayList<>(pipeline.getVideos()));
+      this.viewers = pipeline.getViewerCount();
+      this.startTime = startTime;
+
+      JsonObject object = new JsonObject();
+      object.addProperty("name", name);
+      JsonArray array = new JsonArray();
+      for (String participant : participants) {
+        array.add(participant);
+      }
+      object.add("participants", array);
+      array = new JsonArray();
+      for (String video : videos) {
+        array.add(video);
+      }
+      object.add("videos", array);
+      object.addProperty("viewers", viewers);
+      object.addProperty("startTime", startTime);
+      this.json = object;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public List<String> getParticipants() {
+      return participants;
+    }
+
+    public List<String> getVideos() {
+      return videos;
+    }
+
+    public int getViewers() {
+      return viewers;
+    }
+
+    public long getStartTime() {
+      return startTime;
+    }
+
+    /**
+     * @return the shared JSON form, must not be modified
+     */
+    public JsonObject toJson() {
+      return json;
+    }
+  }
+
+  public static class Page {
+
+    private final List<StreamInfo> streams;
+    private final String nextCursor;
+
+    Page(List<StreamInfo> streams, String nextCursor) {
+      this.streams = streams;
+      this.nextCursor = nextCursor;
+    }
+
+    public List<StreamInfo> getStreams() {
+      return streams;
+    }
+
+    /**
+     * @return cursor of the next page, null if this is the last one
+     */
+    public String getNextCursor() {
+      return nextCursor;
+    }
+  }
+
+  private static class LiveStream {
+
+    private final StreamPipeline pipeline;
+    private final long startTime;
+
+    LiveStream(StreamPipeline pipeline, long startTime) {
+      this.pipeline = pipeline;
+      this.startTime = startTime;
+    }
+  }
+
+  private static class Snapshot {
+
+    private final List<StreamInfo> streams;
+    private final long createdAt;
+
+    Snapshot(List<StreamInfo> streams, long createdAt) {
+      this.streams = streams;
+      this.createdAt = createdAt;
+    }
+  }
+}
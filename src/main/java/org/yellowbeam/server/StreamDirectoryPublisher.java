@@ -0,0 +1,155 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Pushes the stream directory to subscribed clients. A new subscriber receives the whole directory
+ * once in a {@code streamDirectory} message, and from then on only what changed. Every tick the
+ * directory snapshot is compared with the last published state. Streams added, removed or whose
+ * videos changed, and new viewer counts are sent together in a single
+ * {@code streamDirectoryUpdate} message. That message is serialized once and the same frame is
+ * sent to every subscriber.
+ */
+public class StreamDirectoryPublisher {
+
+  private static final Logger log = LoggerFactory.getLogger(StreamDirectoryPublisher.class);
+
+  private final StreamDirectory directory;
+  private final ScheduledExecutorService scheduler;
+  private final ConcurrentHashMap<String, WebSocketSession> subscribers = new ConcurrentHashMap<>();
+
+  // Guarded by this: state of the directory as last published to the subscribers
+  private Map<String, StreamDirectory.StreamInfo> published = new HashMap<>();
+  private TextMessage fullFrame;
+
+  public StreamDirectoryPublisher(StreamDirectory directory, long tickMillis) {
+    this.directory = directory;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "directory-publisher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void subscribe(WebSocketSession session) {
+    if (fullFrame == null) {
+      JsonArray list = new JsonArray();
+      for (StreamDirectory.StreamInfo info : published.values()) {
+        list.add(info.toJson());
+      }
+      JsonObject message = new JsonObject();
+      message.addProperty("id", "streamDirectory");
+      message.add("streams", list);
+      fullFrame = new TextMessage(message.toString());
+    }
+    send(session, fullFrame);
+    subscribers.put(session.getId(), session);
+  }
+
+  public void unsubscribe(WebSocketSession session) {
+    unsubscribe(session.getId());
+  }
+
+  public void unsubscribe(String sessionId) {
+    subscribers.remove(sessionId);
+  }
+
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private synchronized void tick() {
+    try {
+      List<StreamDirectory.StreamInfo> current = directory.list();
+      Map<String, StreamDirectory.StreamInfo> next = new HashMap<>(current.size() * 2);
+      JsonArray added = new JsonArray();
+      JsonObject viewers = new JsonObject();
+
+      for (StreamDirectory.StreamInfo info : current) {
+        next.put(info.getName(), info);
+        StreamDirectory.StreamInfo previous = published.get(info.getName());
+        if (previous == null || previous.getStartTime() != info.getStartTime()
+            || !previous.getVideos().equals(info.getVideos())) {
+          added.add(info.toJson());
+        } else if (previous.getViewers() != info.getViewers()) {
+          viewers.addProperty(info.getName(), info.getViewers());
+        }
+      }
+      JsonArray removed = new JsonArray();
+      for (String name : published.keySet()) {
+        if (!next.containsKey(name)) {
+          removed.add(name);
+        }
+      }
+
+      published = next;
+      if (added.size() == 0 && removed.size() == 0 && viewers.size() == 0) {
+        return;
+      }
+      fullFrame = null;
+
+      if (!subscribers.isEmpty()) {
+        JsonObject message = new JsonObject();
+        message.addProperty("id", "streamDirectoryUpdate");
+        message.add("added", added);
+        message.add("removed", removed);
+        message.add("viewers", viewers);
+        TextMessage frame = new TextMessage(message.toString());
+        for (WebSocketSession session : subscribers.values()) {
+          send(session, frame);
+        }
+      }
+    } catch (Throwable t) {
+      log.error("Error publishing stream directory", t);
+    }
+  }
+
+  private void send(WebSocketSession session, TextMessage frame) {
+    if (!session.isOpen()) {
+      subscribers.remove(session.getId());
+      return;
+    }
+    try {
+      session.sendMessage(frame);
+    } catch (IOException e) {
+      log.debug(e.getMessage());
+    }
+  }
+}
@@ -17,11 +17,32 @@
 
 package org.yellowbeam.server;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.FilterType;
+import org.kurento.client.GStreamerFilter;
+import org.kurento.client.HubPort;
 import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaObject;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaProfileSpecType;
+import org.kurento.client.RecorderEndpoint;
+import org.kurento.client.Transaction;
 import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Media Pipeline (WebRTC endpoints, i.e. Kurento Media Elements) and connections for the 1 to 1
@@ -33,34 +54,98 @@ import org.kurento.client.WebRtcEndpoint;
  */
 public class StreamPipeline {
 
+  private static final Logger log = LoggerFactory.getLogger(StreamPipeline.class);
+
+  private static final String CALLER_VIDEO = "callerVid";
+  private static final String CALLEE_VIDEO = "calleeVid";
+
+  /**
+   * Name of the single mixed video offered while the stream is in composite mode.
+   */
+  public static final String COMPOSITE_VIDEO = "composite";
+
   private String stream; //only initialized when a stream is started
 
+  private MediaServer server;
   private MediaPipeline pipeline;
+  private final AtomicBoolean released = new AtomicBoolean();
   private UserSession caller;
   private UserSession callee;
   private WebRtcEndpoint callerWebRtcEp;
   private WebRtcEndpoint calleeWebRtcEp;
-  private HashMap<String,WebRtcEndpoint> viewerWebRtcEp;
+  private final ConcurrentHashMap<String, WebRtcEndpoint> sources = new ConcurrentHashMap<>();
+  private final List<String> sourceNames = new CopyOnWriteArrayList<>();
+  private final ConcurrentHashMap<String, StreamViewer> viewers = new ConcurrentHashMap<>();
+  private final AtomicInteger originViewerEndpoints = new AtomicInteger();
+
+  // Only set in composite mode, guarded by this
+  private Composite composite;
+  private HubPort compositeOutput;
+  private final ConcurrentHashMap<String, HubPort> compositeInputs = new ConcurrentHashMap<>();
+
+  private MediaServerPool relayServers; //only set when relays are enabled
+  private int relayThreshold;
+  private final List<StreamRelay> relays = new CopyOnWriteArrayList<>();
 
-  public StreamPipeline(KurentoClient kurento, UserSession caller, UserSession callee) {
+  private String recordingUri; //only set when the stream is recorded, guarded by this
+  // Recorder of each video, by video name. Guarded by this
+  private final Map<String, RecorderEndpoint> recorders = new HashMap<>();
+
+  private BitrateLadder ladder; //only set when renditions are enabled
+  // Scaled renditions of each video, by rendition name. Guarded by this
+  private final Map<String, Map<String, GStreamerFilter>> renditionFilters = new HashMap<>();
+
+  public StreamPipeline(MediaServer server, UserSession caller, UserSession callee) {
+    this.server = server;
     try {
-      this.pipeline = kurento.createMediaPipeline();
-      this.callerWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
-      this.calleeWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
+      final MediaPipeline pipeline = TraceSpan.trace("createPipeline",
+          () -> server.createPipeline());
+      this.pipeline = pipeline;
+      this.callerWebRtcEp =
+          TraceSpan.trace("buildEndpoint", () -> new WebRtcEndpoint.Builder(pipeline).build());
+      this.calleeWebRtcEp =
+          TraceSpan.trace("buildEndpoint", () -> new WebRtcEndpoint.Builder(pipeline).build());
 
       this.caller = caller;
       this.callee = callee;
 
-      this.callerWebRtcEp.connect(this.calleeWebRtcEp);
-      this.calleeWebRtcEp.connect(this.callerWebRtcEp);
-      this.viewerWebRtcEp = new HashMap<>();
+      TraceSpan.trace("connect", () -> {
+        callerWebRtcEp.connect(calleeWebRtcEp);
+        calleeWebRtcEp.connect(callerWebRtcEp);
+      });
+      putCallSources();
+      server.pipelineCreated(2);
     } catch (Throwable t) {
+      released.set(true);
       if (this.pipeline != null) {
         pipeline.release();
       }
     }
   }
 
+  /**
+   * Builds the call pipeline from media elements created beforehand, already connected to each
+   * other.
+   */
+  public StreamPipeline(MediaServer server, MediaPipeline pipeline, WebRtcEndpoint callerWebRtcEp,
+      WebRtcEndpoint calleeWebRtcEp, UserSession caller, UserSession callee) {
+    this.server = server;
+    this.pipeline = pipeline;
+    this.callerWebRtcEp = callerWebRtcEp;
+    this.calleeWebRtcEp = calleeWebRtcEp;
+    this.caller = caller;
+    this.callee = callee;
+    putCallSources();
+    server.pipelineCreated(2);
+  }
+
+  private void putCallSources() {
+    sources.put(CALLER_VIDEO, callerWebRtcEp);
+    sources.put(CALLEE_VIDEO, calleeWebRtcEp);
+    sourceNames.add(CALLER_VIDEO);
+    sourceNames.add(CALLEE_VIDEO);
+  }
+
   public void setStreamName(String name){
     this.stream = name;
   }
@@ -77,13 +162,235 @@ public class StreamPipeline {
   }
 
   public void release() {
+    if (!released.compareAndSet(false, true)) {
+      return;
+    }
+    stopRecording(null);
+    // Releasing the pipelines releases every viewer endpoint with them
+    for (StreamRelay relay : relays) {
+      relay.release();
+    }
+    relays.clear();
+    viewers.clear();
+    server.pipelineReleased(sources.size() + originViewerEndpoints.getAndSet(0)
+        + compositeElements() + renditionElements());
     if (pipeline != null) {
       pipeline.release();
     }
   }
 
-  public WebRtcEndpoint getViewerWebRtcEp(String sessionID){
-    return viewerWebRtcEp.get(sessionID);
+  public boolean isReleased() {
+    return released.get();
+  }
+
+  /**
+   * @return IDs of the media pipeline of the call and of the relay pipelines of the stream
+   */
+  public List<String> getPipelineIds() {
+    List<String> ids = new ArrayList<>(1 + relays.size());
+    if (pipeline != null) {
+      ids.add(pipeline.getId());
+    }
+    for (StreamRelay relay : relays) {
+      ids.add(relay.getPipeline().getId());
+    }
+    return ids;
+  }
+
+  /**
+   * @return the media server hosting this pipeline
+   */
+  public MediaServer getServer() {
+    return server;
+  }
+
+  public KurentoClient getKurentoClient() {
+    return server.getClient();
+  }
+
+  public StreamViewer getViewer(String sessionId) {
+    return viewers.get(sessionId);
+  }
+
+  public WebRtcEndpoint getViewerWebRtcEp(String sessionId, String video) {
+    StreamViewer viewer = viewers.get(sessionId);
+    return viewer != null ? viewer.getEndpoint(video) : null;
+  }
+
+  /**
+   * @return client of the media server hosting a viewer endpoint, which may be a relay
+   */
+  public KurentoClient getViewerKurentoClient(String sessionId, String video) {
+    StreamViewer viewer = viewers.get(sessionId);
+    StreamRelay relay = viewer != null ? viewer.getRelay(video) : null;
+    return relay != null ? relay.getServer().getClient() : server.getClient();
+  }
+
+  /**
+   * Serves part of the audience from relay pipelines on other media servers. Once a media server
+   * holds {@code threshold} viewer endpoints of this stream, new viewers are placed on another
+   * one.
+   */
+  public void enableRelays(MediaServerPool servers, int threshold) {
+    this.relayServers = servers;
+    this.relayThreshold = threshold;
+  }
+
+  public List<StreamRelay> getRelays() {
+    return relays;
+  }
+
+  /**
+   * Offers every video in the renditions of a ladder. Each rendition is produced once for the
+   * stream, when its first viewer arrives, and viewers are assigned one from their bandwidth.
+   */
+  public void setBitrateLadder(BitrateLadder ladder) {
+    this.ladder = ladder;
+  }
+
+  public BitrateLadder getBitrateLadder() {
+    return ladder;
+  }
+
+  /**
+   * Mixes every source of the stream into a single layout on the media server. Viewers then
+   * request only {@link #COMPOSITE_VIDEO} and receive all the publishers through one endpoint,
+   * while the mixing is done once for the whole audience.
+   */
+  public synchronized void enableComposite() {
+    if (composite != null) {
+      return;
+    }
+    composite = new Composite.Builder(pipeline).build();
+    compositeOutput = new HubPort.Builder(composite).build();
+    server.endpointsCreated(2);
+    for (String video : sourceNames) {
+      addCompositeInput(video, sources.get(video));
+    }
+  }
+
+  public synchronized boolean isComposite() {
+    return composite != null;
+  }
+
+  /**
+   * @return names of the videos viewers can request, in the order they were added. In composite
+   *         mode that is only the mixed video.
+   */
+  public List<String> getVideos() {
+    if (isComposite()) {
+      return Collections.singletonList(COMPOSITE_VIDEO);
+    }
+    return Collections.unmodifiableList(sourceNames);
+  }
+
+  /**
+   * @return whether viewers can request a video, the mixed one included
+   */
+  public boolean hasVideo(String video) {
+    return getSourceElement(video) != null;
+  }
+
+  /**
+   * @param video
+   * @return the endpoint publishing the requested video, or null if there is no such video
+   */
+  public WebRtcEndpoint getSourceWebRtcEp(String video) {
+    return sources.get(video);
+  }
+
+  /**
+   * @return the element viewers of a video are fed from: the publisher endpoint, or the mixer
+   *         output for the composite video
+   */
+  private synchronized MediaElement getSourceElement(String video) {
+    if (COMPOSITE_VIDEO.equals(video)) {
+      return compositeOutput;
+    }
+    return sources.get(video);
+  }
+
+  /**
+   * Adds a publisher to the stream, besides the two call peers.
+   *
+   * @param video name viewers will use to request the new video
+   * @return the endpoint receiving the new video, or null if the name is already in use
+   */
+  public WebRtcEndpoint addSource(String video) {
+    WebRtcEndpoint source =
+        TraceSpan.trace("buildEndpoint", () -> new WebRtcEndpoint.Builder(pipeline).build());
+    if (sources.putIfAbsent(video, source) != null) {
+      source.release();
+      return null;
+    }
+    sourceNames.add(video);
+    server.endpointsCreated(1);
+    synchronized (this) {
+      if (composite != null) {
+        addCompositeInput(video, source);
+      }
+      if (recordingUri != null) {
+        record(video, source);
+      }
+    }
+    return source;
+  }
+
+  /**
+   * Removes a publisher added with {@link #addSource}. The call peers cannot be removed.
+   *
+   * @return false if there was no such removable source
+   */
+  public boolean removeSource(String video) {
+    if (CALLER_VIDEO.equals(video) || CALLEE_VIDEO.equals(video)) {
+      return false;
+    }
+    WebRtcEndpoint source = sources.remove(video);
+    if (source == null) {
+      return false;
+    }
+    sourceNames.remove(video);
+    releaseRenditions(video);
+    stopRecording(video);
+    HubPort input = compositeInputs.remove(video);
+    if (input != null) {
+      releaseAsync(input);
+      server.endpointsReleased(1);
+    }
+    releaseAsync(source);
+    server.endpointsReleased(1);
+    return true;
+  }
+
+  private void addCompositeInput(String video, WebRtcEndpoint source) {
+    if (compositeInputs.containsKey(video)) {
+      return;
+    }
+    HubPort input = new HubPort.Builder(composite).build();
+    source.connect(input);
+    compositeInputs.put(video, input);
+    server.endpointsCreated(1);
+  }
+
+  private synchronized int compositeElements() {
+    return composite != null ? 2 + compositeInputs.size() : 0;
+  }
+
+  private synchronized void disableComposite() {
+    if (composite == null) {
+      return;
+    }
+    releaseRenditions(COMPOSITE_VIDEO);
+    int elements = compositeElements();
+    for (HubPort input : compositeInputs.values()) {
+      releaseAsync(input);
+    }
+    compositeInputs.clear();
+    releaseAsync(compositeOutput);
+    releaseAsync(composite);
+    compositeOutput = null;
+    composite = null;
+    server.endpointsReleased(elements);
   }
 
   public UserSession getCaller(){
@@ -94,19 +401,145 @@ public class StreamPipeline {
     return callee;
   }
 
-  public HashMap<String, WebRtcEndpoint> getAllViewersWebRtcEp(){
-    return viewerWebRtcEp;
+  public Collection<StreamViewer> getViewers() {
+    return viewers.values();
+  }
+
+  public int getViewerCount() {
+    return viewers.size();
   }
 
   /**
-   * 
+   * Creates the endpoint through which a viewer session receives one of the stream videos, and
+   * connects it to the video source. An endpoint previously created for the same session and
+   * video is released.
+   *
    * @param sessionId
-   * @return 0 on success
+   * @param video
+   * @return the new viewer endpoint
    */
-  public WebRtcEndpoint addViewerWebRtcEp(String sessionId){
-    WebRtcEndpoint vRtcEndpoint = new WebRtcEndpoint.Builder(pipeline).build();
+  public WebRtcEndpoint addViewerWebRtcEp(String sessionId, String video) {
+    return addViewerWebRtcEp(sessionId, video, 0);
+  }
+
+  /**
+   * @param bandwidthKbps bandwidth reported by the viewer, 0 if unknown
+   * @see #addViewerWebRtcEp(String, String)
+   */
+  public WebRtcEndpoint addViewerWebRtcEp(String sessionId, String video, int bandwidthKbps) {
+    BitrateLadder.Rendition rendition = ladder != null ? ladder.select(bandwidthKbps) : null;
+    StreamRelay relay = selectRelay();
+    WebRtcEndpoint vRtcEndpoint;
+    if (relay == null) {
+      vRtcEndpoint = buildViewerEndpoint(pipeline, getFeed(video, rendition, null));
+      originViewerEndpoints.incrementAndGet();
+      server.endpointsCreated(1);
+    } else {
+      TraceSpan.current().setAttribute("relay.server", relay.getServer().getUrl());
+      try {
+        vRtcEndpoint = buildViewerEndpoint(relay.getPipeline(), getFeed(video, rendition, relay));
+      } catch (RuntimeException e) {
+        relayViewerRemoved(relay);
+        throw e;
+      }
+      relay.getServer().endpointsCreated(1);
+    }
+    if (rendition != null) {
+      vRtcEndpoint.setMaxVideoSendBandwidth(rendition.getMaxKbps());
+    }
+
+    StreamViewer viewer = viewers.computeIfAbsent(sessionId, StreamViewer::new);
+    StreamRelay previousRelay = viewer.getRelay(video);
+    WebRtcEndpoint previous = viewer.putEndpoint(video, vRtcEndpoint, relay, rendition);
+    if (previous != null) {
+      releaseViewerEndpoint(previous, previousRelay);
+    }
+    return vRtcEndpoint;
+  }
+
+  private WebRtcEndpoint buildViewerEndpoint(final MediaPipeline pipeline,
+      final MediaElement feed) {
+    final WebRtcEndpoint vRtcEndpoint =
+        TraceSpan.trace("buildEndpoint", () -> new WebRtcEndpoint.Builder(pipeline).build());
+    TraceSpan.trace("connect", () -> feed.connect(vRtcEndpoint));
     return vRtcEndpoint;
   }
+
+  /**
+   * Moves a viewer endpoint to the rendition that suits its new bandwidth. Moving up requires a
+   * margin over the rendition bitrate, so a viewer close to a step does not keep switching.
+   *
+   * @return true if the viewer was moved to another rendition
+   */
+  public boolean switchRendition(String sessionId, String video, int bandwidthKbps) {
+    StreamViewer viewer = viewers.get(sessionId);
+    WebRtcEndpoint endpoint = viewer != null ? viewer.getEndpoint(video) : null;
+    BitrateLadder.Rendition current = viewer != null ? viewer.getRendition(video) : null;
+    if (ladder == null || endpoint == null || current == null) {
+      return false;
+    }
+    BitrateLadder.Rendition next = ladder.select(bandwidthKbps);
+    if (next == current || (next.getMaxKbps() > current.getMaxKbps()
+        && bandwidthKbps < next.getMaxKbps() * 5 / 4)) {
+      return false;
+    }
+
+    StreamRelay relay = viewer.getRelay(video);
+    getFeed(video, current, relay).disconnect(endpoint);
+    getFeed(video, next, relay).connect(endpoint);
+    endpoint.setMaxVideoSendBandwidth(next.getMaxKbps());
+    viewer.setRendition(video, next);
+    log.debug("Viewer of '{}' moved from {} to {}", video, current.getName(), next.getName());
+    return true;
+  }
+
+  /**
+   * Feeds the endpoint a viewer receives a video through from another video of the stream. The
+   * endpoint keeps its negotiated session and its ICE connection, and its feeds are swapped in a
+   * single transaction, so the viewer switches without a new offer. From then on the endpoint is
+   * known by the new video.
+   *
+   * @return the endpoint, or null if the session has no endpoint for {@code from}, already has
+   *         one for {@code to}, or the stream has no such video
+   */
+  public WebRtcEndpoint switchViewerSource(String sessionId, String from, String to) {
+    StreamViewer viewer = viewers.get(sessionId);
+    WebRtcEndpoint endpoint = viewer != null ? viewer.getEndpoint(from) : null;
+    if (endpoint == null || viewer.getEndpoint(to) != null || !hasVideo(to)) {
+      return null;
+    }
+    StreamRelay relay = viewer.getRelay(from);
+    BitrateLadder.Rendition rendition = viewer.getRendition(from);
+    // The previous video may have been removed from the stream, leaving nothing to disconnect
+    MediaElement current = hasVideo(from) ? getFeed(from, rendition, relay) : null;
+    MediaElement next = getFeed(to, rendition, relay);
+
+    Transaction tx = getViewerKurentoClient(sessionId, from).beginTransaction();
+    if (current != null) {
+      current.disconnect(endpoint, tx);
+    }
+    next.connect(endpoint, tx);
+    tx.commit();
+    viewer.moveEndpoint(from, to);
+    log.debug("Viewer moved from '{}' to '{}'", from, to);
+    return endpoint;
+  }
+
+  /**
+   * Stops sending the stream to a viewer session, releasing all its endpoints.
+   *
+   * @return false if the session was not viewing this stream
+   */
+  public boolean removeViewer(String sessionId) {
+    StreamViewer viewer = viewers.remove(sessionId);
+    if (viewer == null) {
+      return false;
+    }
+    for (String video : viewer.getVideos()) {
+      releaseViewerEndpoint(viewer.getEndpoint(video), viewer.getRelay(video));
+    }
+    return true;
+  }
   
   public WebRtcEndpoint getCallerWebRtcEp() {
     return callerWebRtcEp;
@@ -116,9 +549,228 @@ public class StreamPipeline {
     return calleeWebRtcEp;
   }
 
+  /**
+   * Ends the stream. Every viewer endpoint is released at once, without waiting for the media
+   * server to confirm each one, so a large audience is torn down in a single round trip time.
+   */
   public void stopStream() {
     stream = null;
-    viewerWebRtcEp.clear();
+    for (String sessionId : viewers.keySet()) {
+      removeViewer(sessionId);
+    }
+    for (StreamRelay relay : relays) {
+      relay.release();
+    }
+    relays.clear();
+    disableComposite();
+    releaseRenditions(null);
+    stopRecording(null);
+  }
+
+  /**
+   * Records every video of the stream, and those added later, to a WebM file each. The files are
+   * written by the media server, named after the videos.
+   *
+   * @param directoryUri URI of the directory the media server writes the files to
+   */
+  public synchronized void enableRecording(String directoryUri) {
+    recordingUri = directoryUri;
+    for (String video : sourceNames) {
+      record(video, sources.get(video));
+    }
+  }
+
+  public synchronized boolean isRecording() {
+    return recordingUri != null;
+  }
+
+  private synchronized void record(String video, WebRtcEndpoint source) {
+    if (recorders.containsKey(video)) {
+      return;
+    }
+    final String uri = recordingUri + "/" + toFileName(video) + ".webm";
+    RecorderEndpoint recorder = TraceSpan.trace("buildRecorder",
+        () -> new RecorderEndpoint.Builder(pipeline, uri)
+            .withMediaProfile(MediaProfileSpecType.WEBM).build());
+    recorders.put(video, recorder);
+    server.endpointsCreated(1);
+    source.connect(recorder);
+    recorder.record();
+  }
+
+  /**
+   * Stops recording and releases the recorders once their files are closed.
+   *
+   * @param video video whose recording is stopped, null for all of them
+   */
+  private synchronized void stopRecording(String video) {
+    List<RecorderEndpoint> stopped = new ArrayList<>();
+    if (video == null) {
+      stopped.addAll(recorders.values());
+      recorders.clear();
+      recordingUri = null;
+    } else if (recorders.containsKey(video)) {
+      stopped.add(recorders.remove(video));
+    }
+    for (final RecorderEndpoint recorder : stopped) {
+      recorder.stop(new Continuation<Void>() {
+        @Override
+        public void onSuccess(Void result) throws Exception {
+          releaseAsync(recorder);
+        }
+
+        @Override
+        public void onError(Throwable cause) throws Exception {
+          log.debug("Error stopping recorder: {}", cause.getMessage());
+          releaseAsync(recorder);
+        }
+      });
+    }
+    server.endpointsReleased(stopped.size());
+  }
+
+  /**
+   * @return the name with every character that is not safe in a file name replaced
+   */
+  static String toFileName(String name) {
+    return name.replaceAll("[^A-Za-z0-9_-]", "_");
+  }
+
+  /**
+   * @return the element a viewer endpoint of a video and rendition is connected to, on the origin
+   *         pipeline or on a relay
+   */
+  private MediaElement getFeed(String video, BitrateLadder.Rendition rendition,
+      StreamRelay relay) {
+    MediaElement element = getRenditionElement(video, rendition);
+    if (relay == null) {
+      return element;
+    }
+    boolean top = rendition == null || ladder.isTop(rendition);
+    return relay.getInput(top ? video : video + "@" + rendition.getName(), element);
+  }
+
+  private synchronized MediaElement getRenditionElement(String video,
+      BitrateLadder.Rendition rendition) {
+    MediaElement source = getSourceElement(video);
+    if (rendition == null || ladder.isTop(rendition)) {
+      return source;
+    }
+    Map<String, GStreamerFilter> filters = renditionFilters.get(video);
+    if (filters == null) {
+      filters = new HashMap<>();
+      renditionFilters.put(video, filters);
+    }
+    GStreamerFilter filter = filters.get(rendition.getName());
+    if (filter == null) {
+      TraceSpan span = TraceSpan.start("createRendition").setAttribute("rendition",
+          rendition.getName());
+      try {
+        filter = new GStreamerFilter.Builder(pipeline, rendition.getCaps())
+            .withFilterType(FilterType.VIDEO).build();
+        source.connect(filter);
+      } finally {
+        span.end();
+      }
+      filters.put(rendition.getName(), filter);
+      server.endpointsCreated(1);
+    }
+    return filter;
+  }
+
+  /**
+   * @param video video whose renditions are released, null for all of them
+   */
+  private synchronized void releaseRenditions(String video) {
+    List<Map<String, GStreamerFilter>> released = new ArrayList<>();
+    if (video == null) {
+      released.addAll(renditionFilters.values());
+      renditionFilters.clear();
+    } else if (renditionFilters.containsKey(video)) {
+      released.add(renditionFilters.remove(video));
+    }
+    for (Map<String, GStreamerFilter> filters : released) {
+      for (GStreamerFilter filter : filters.values()) {
+        releaseAsync(filter);
+      }
+      server.endpointsReleased(filters.size());
+    }
+  }
+
+  private synchronized int renditionElements() {
+    int elements = 0;
+    for (Map<String, GStreamerFilter> filters : renditionFilters.values()) {
+      elements += filters.size();
+    }
+    return elements;
+  }
+
+  /**
+   * @return the relay for the next viewer endpoint, already counting it so the relay is not
+   *         released meanwhile, or null to place it on the origin pipeline
+   */
+  private synchronized StreamRelay selectRelay() {
+    if (relayServers == null || originViewerEndpoints.get() < relayThreshold) {
+      return null;
+    }
+    for (StreamRelay relay : relays) {
+      if (relay.getViewerEndpointCount() < relayThreshold) {
+        relay.viewerAdded();
+        return relay;
+      }
+    }
+
+    List<MediaServer> used = new ArrayList<>();
+    used.add(server);
+    for (StreamRelay relay : relays) {
+      used.add(relay.getServer());
+    }
+    MediaServer target = relayServers.select(used);
+    if (target == null) {
+      // Every media server already serves this stream, keep filling the origin
+      return null;
+    }
+
+    StreamRelay relay = new StreamRelay(server, pipeline, target);
+    relays.add(relay);
+    relay.viewerAdded();
+    log.debug("Stream '{}' relayed to {}", stream, target);
+    return relay;
+  }
+
+  /**
+   * Releases a relay once its last viewer is gone, so it does not hold a pipeline and an RTP
+   * endpoint pair per video on its media server until the stream ends.
+   */
+  private synchronized void relayViewerRemoved(StreamRelay relay) {
+    if (relay.viewerRemoved() == 0 && relays.remove(relay)) {
+      relay.release();
+      log.debug("Stream '{}' no longer relayed to {}", stream, relay.getServer());
+    }
+  }
+
+  private void releaseViewerEndpoint(WebRtcEndpoint endpoint, StreamRelay relay) {
+    releaseAsync(endpoint);
+    if (relay == null) {
+      originViewerEndpoints.decrementAndGet();
+      server.endpointsReleased(1);
+    } else {
+      relay.getServer().endpointsReleased(1);
+      relayViewerRemoved(relay);
+    }
+  }
+
+  private static void releaseAsync(final MediaObject endpoint) {
+    endpoint.release(new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) throws Exception {
+      }
+
+      @Override
+      public void onError(Throwable cause) throws Exception {
+        log.debug("Error releasing media element: {}", cause.getMessage());
+      }
+    });
   }
 
 
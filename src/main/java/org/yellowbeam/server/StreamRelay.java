@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+
+/**
+ * Pipeline on another media server that serves part of the audience of a stream. Each video of
+ * the stream reaches the relay once, through a pair of RTP endpoints: one in the origin pipeline
+ * connected to the video source, and one in the relay pipeline feeding all the relay viewers.
+ * A relay is released, with its pipeline and RTP endpoints, as soon as its last viewer leaves.
+ */
+public class StreamRelay {
+
+  private final MediaServer originServer;
+  private final MediaPipeline originPipeline;
+  private final MediaServer server;
+  private final MediaPipeline pipeline;
+
+  private final ConcurrentHashMap<String, RtpEndpoint> inputs = new ConcurrentHashMap<>();
+  private final List<RtpEndpoint> outputs = new CopyOnWriteArrayList<>();
+  private final AtomicInteger viewerEndpoints = new AtomicInteger();
+  private final AtomicBoolean released = new AtomicBoolean();
+
+  StreamRelay(MediaServer originServer, MediaPipeline originPipeline, MediaServer server) {
+    this.originServer = originServer;
+    this.originPipeline = originPipeline;
+    this.server = server;
+    this.pipeline = server.createPipeline();
+    server.pipelineCreated(0);
+  }
+
+  public MediaServer getServer() {
+    return server;
+  }
+
+  public MediaPipeline getPipeline() {
+    return pipeline;
+  }
+
+  public int getViewerEndpointCount() {
+    return viewerEndpoints.get();
+  }
+
+  /**
+   * Returns the relay side of a video, bridging it from the origin on first use.
+   *
+   * @param video name of the video in the stream
+   * @param source element producing the video in the origin pipeline
+   */
+  synchronized MediaElement getInput(String video, MediaElement source) {
+    RtpEndpoint input = inputs.get(video);
+    if (input == null) {
+      TraceSpan span = TraceSpan.start("bridgeRelay").setAttribute("video", video);
+      input = new RtpEndpoint.Builder(pipeline).build();
+      RtpEndpoint output = new RtpEndpoint.Builder(originPipeline).build();
+      try {
+        input.processAnswer(output.processOffer(input.generateOffer()));
+        source.connect(output);
+      } catch (RuntimeException e) {
+        input.release();
+        output.release();
+        span.recordError(e);
+        throw e;
+      } finally {
+        span.end();
+      }
+      inputs.put(video, input);
+      outputs.add(output);
+      server.endpointsCreated(1);
+      originServer.endpointsCreated(1);
+    }
+    return input;
+  }
+
+  void viewerAdded() {
+    viewerEndpoints.incrementAndGet();
+  }
+
+  /**
+   * @return viewer endpoints left on the relay
+   */
+  int viewerRemoved() {
+    return viewerEndpoints.decrementAndGet();
+  }
+
+  void release() {
+    if (!released.compareAndSet(false, true)) {
+      return;
+    }
+    for (RtpEndpoint output : outputs) {
+      output.release();
+    }
+    originServer.endpointsReleased(outputs.size());
+    server.pipelineReleased(inputs.size() + viewerEndpoints.get());
+    pipeline.release();
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.yellowbeam.server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kurento.client.WebRtcEndpoint;
+
+/**
+ * A viewer of a stream. A single viewer session can watch several videos of the same stream, so
+ * it keeps one endpoint per requested video.
+ */
+public class StreamViewer {
+
+  private final String sessionId;
+  private final ConcurrentHashMap<String, WebRtcEndpoint> endpoints = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, StreamRelay> relays = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, BitrateLadder.Rendition> renditions =
+      new ConcurrentHashMap<>();
+  // Videos whose endpoint was switched to another one, to the video the endpoint receives now
+  private final ConcurrentHashMap<String, String> switched = new ConcurrentHashMap<>();
+
+  public StreamViewer(String sessionId) {
+    this.sessionId = sessionId;
+  }
+
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  public WebRtcEndpoint getEndpoint(String video) {
+    return endpoints.get(video);
+  }
+
+  /**
+   * @return the video an endpoint receives now, or null if the viewer no longer uses it
+   */
+  public String getVideo(WebRtcEndpoint endpoint) {
+    for (Map.Entry<String, WebRtcEndpoint> entry : endpoints.entrySet()) {
+      if (entry.getValue() == endpoint) {
+        return entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds the video a client means, for messages it sent before it learnt that an endpoint was
+   * switched to another video.
+   *
+   * @return the video itself, or the video its endpoint was switched to
+   */
+  public String resolveVideo(String video) {
+    if (endpoints.containsKey(video)) {
+      return video;
+    }
+    String current = switched.get(video);
+    return current != null ? current : video;
+  }
+
+  public Collection<WebRtcEndpoint> getEndpoints() {
+    return endpoints.values();
+  }
+
+  public Collection<String> getVideos() {
+    return endpoints.keySet();
+  }
+
+  /**
+   * @return the relay hosting the endpoint of a video, or null if it is on the origin pipeline
+   */
+  public StreamRelay getRelay(String video) {
+    return relays.get(video);
+  }
+
+  /**
+   * @return the rendition a video is received in, or null if the stream has no bitrate ladder
+   */
+  public BitrateLadder.Rendition getRendition(String video) {
+    return renditions.get(video);
+  }
+
+  /**
+   * @param relay relay hosting the endpoint, null for the origin pipeline
+   * @param rendition rendition the endpoint is fed from, null without a bitrate ladder
+   * @return the endpoint previously used for the same video, if any
+   */
+  WebRtcEndpoint putEndpoint(String video, WebRtcEndpoint endpoint, StreamRelay relay,
+      BitrateLadder.Rendition rendition) {
+    if (relay != null) {
+      relays.put(video, relay);
+    } else {
+      relays.remove(video);
+    }
+    setRendition(video, rendition);
+    switched.remove(video);
+    return endpoints.put(video, endpoint);
+  }
+
+  /**
+   * Keeps the endpoint of a video, with its relay and rendition, under another video.
+   */
+  void moveEndpoint(String from, String to) {
+    StreamRelay relay = relays.remove(from);
+    BitrateLadder.Rendition rendition = renditions.remove(from);
+    putEndpoint(to, endpoints.remove(from), relay, rendition);
+    switched.replaceAll((video, current) -> current.equals(from) ? to : current);
+    switched.put(from, to);
+  }
+
+  void setRendition(String video, BitrateLadder.Rendition rendition) {
+    if (rendition != null) {
+      renditions.put(video, rendition);
+    } else {
+      renditions.remove(video);
+    }
+  }
+
+  boolean isEmpty() {
+    return endpoints.isEmpty();
+  }
+}
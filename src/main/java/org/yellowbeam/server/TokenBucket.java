@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+/**
+ * Token bucket refilled at a fixed rate up to a maximum burst. Not thread safe, callers hold
+ * their own lock.
+ */
+class TokenBucket {
+
+  private final double ratePerNano;
+  private final double burst;
+  private double tokens;
+  private long refilledAt;
+
+  /**
+   * @param ratePerSecond tokens added every second
+   * @param burst tokens the bucket holds at most, it starts full
+   */
+  TokenBucket(double ratePerSecond, int burst) {
+    this.ratePerNano = ratePerSecond / 1e9;
+    this.burst = Math.max(1, burst);
+    this.tokens = this.burst;
+    this.refilledAt = System.nanoTime();
+  }
+
+  boolean hasToken() {
+    refill();
+    return tokens >= 1;
+  }
+
+  boolean tryAcquire() {
+    refill();
+    if (tokens < 1) {
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+    refilledAt = now;
+  }
+}
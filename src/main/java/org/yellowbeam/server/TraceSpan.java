@@ -0,0 +1,262 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package org.yellowbeam.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * One timed stage of a call or viewer setup, following the OpenTelemetry span model: spans of the
+ * same setup share a trace ID and point to their parent span. The span being recorded on a thread
+ * is kept in a thread local, so media code deep in the call path can open child spans with
+ * {@link #start(String)} without a tracer being passed around. Outside of a trace those calls
+ * return a span that records nothing.
+ *
+ * A trace is handed to its exporter when its root span ends, with all the spans ended before.
+ */
+public final class TraceSpan implements AutoCloseable {
+
+  private static final ThreadLocal<TraceSpan> CURRENT = new ThreadLocal<>();
+  // Turns System.nanoTime() into nanoseconds since the epoch, so spans are ordered consistently
+  private static final long EPOCH_OFFSET_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+  /**
+   * Span that records nothing, returned when no trace is being recorded.
+   */
+  static final TraceSpan NOOP = new TraceSpan(null, null, null, null);
+
+  private final SetupTracer tracer;
+  private final TraceSpan root;
+  private final String traceId;
+  private final String spanId;
+  private final String parentSpanId;
+  private final String name;
+  private final long startEpochNanos;
+  private final Map<String, Object> attributes = new LinkedHashMap<>();
+  private final List<TraceSpan> finished; // spans of the whole trace, only kept by the root
+  private final TraceSpan previous;
+
+  private long endEpochNanos;
+  private String error;
+  private boolean ended;
+
+  private TraceSpan(SetupTracer tracer, TraceSpan parent, String name, TraceSpan previous) {
+    this.tracer = tracer;
+    this.name = name;
+    this.previous = previous;
+    this.startEpochNanos = EPOCH_OFFSET_NANOS + System.nanoTime();
+    if (name == null) {
+      this.root = null;
+      this.traceId = null;
+      this.spanId = null;
+      this.parentSpanId = null;
+      this.finished = null;
+    } else if (parent == null) {
+      this.root = this;
+      this.traceId = randomId() + randomId();
+      this.spanId = randomId();
+      this.parentSpanId = null;
+      this.finished = new ArrayList<>();
+    } else {
+      this.root = parent.root;
+      this.traceId = parent.traceId;
+      this.spanId = randomId();
+      this.parentSpanId = parent.spanId;
+      this.finished = null;
+    }
+  }
+
+  private static String randomId() {
+    return String.format("%016x", ThreadLocalRandom.current().nextLong());
+  }
+
+  /**
+   * Starts the root span of a new trace on the current thread.
+   */
+  static TraceSpan startTrace(SetupTracer tracer, String name) {
+    TraceSpan span = new TraceSpan(tracer, null, name, CURRENT.get());
+    CURRENT.set(span);
+    return span;
+  }
+
+  /**
+   * Starts a child of the span being recorded on the current thread.
+   *
+   * @return the new span, or {@link #NOOP} if no trace is being recorded
+   */
+  public static TraceSpan start(String name) {
+    TraceSpan parent = CURRENT.get();
+    if (parent == null) {
+      return NOOP;
+    }
+    TraceSpan span = new TraceSpan(parent.tracer, parent, name, parent);
+    CURRENT.set(span);
+    return span;
+  }
+
+  /**
+   * @return the span being recorded on the current thread, or {@link #NOOP}
+   */
+  public static TraceSpan current() {
+    TraceSpan span = CURRENT.get();
+    return span != null ? span : NOOP;
+  }
+
+  /**
+   * Runs a stage in its own child span, which records the exception thrown by the stage.
+   */
+  public static <T> T trace(String name, Supplier<T> stage) {
+    TraceSpan span = start(name);
+    try {
+      return stage.get();
+    } catch (RuntimeException e) {
+      span.recordError(e);
+      throw e;
+    } finally {
+      span.end();
+    }
+  }
+
+  public static void trace(String name, Runnable stage) {
+    TraceSpan span = start(name);
+    try {
+      stage.run();
+    } catch (RuntimeException e) {
+      span.recordError(e);
+      throw e;
+    } finally {
+      span.end();
+    }
+  }
+
+  public boolean isRecording() {
+    return name != null;
+  }
+
+  /**
+   * @param value a string, a number or a boolean
+   */
+  public TraceSpan setAttribute(String key, Object value) {
+    if (name != null && value != null) {
+      synchronized (this) {
+        attributes.put(key, value);
+      }
+    }
+    return this;
+  }
+
+  public TraceSpan recordError(Throwable t) {
+    if (name != null) {
+      synchronized (this) {
+        error = t.getClass().getSimpleName() + ": " + t.getMessage();
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Ends the span, making its parent the current span again. Ending the root span exports the
+   * trace.
+   */
+  public void end() {
+    if (name == null) {
+      return;
+    }
+    synchronized (this) {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      endEpochNanos = EPOCH_OFFSET_NANOS + System.nanoTime();
+    }
+    if (CURRENT.get() == this) {
+      if (previous != null) {
+        CURRENT.set(previous);
+      } else {
+        CURRENT.remove();
+      }
+    }
+
+    List<TraceSpan> spans;
+    synchronized (root) {
+      root.finished.add(this);
+      if (root != this) {
+        return;
+      }
+      spans = new ArrayList<>(finished);
+    }
+    tracer.export(spans);
+  }
+
+  @Override
+  public void close() {
+    end();
+  }
+
+  public String getTraceId() {
+    return traceId;
+  }
+
+  public String getSpanId() {
+    return spanId;
+  }
+
+  /**
+   * @return the ID of the parent span, null for the root span of a trace
+   */
+  public String getParentSpanId() {
+    return parentSpanId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getStartEpochNanos() {
+    return startEpochNanos;
+  }
+
+  public synchronized long getEndEpochNanos() {
+    return endEpochNanos;
+  }
+
+  public synchronized Map<String, Object> getAttributes() {
+    return Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+  }
+
+  /**
+   * @return the exception that failed the stage, or null if it succeeded
+   */
+  public synchronized String getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return name + " " + TimeUnit.NANOSECONDS.toMicros(getEndEpochNanos() - startEpochNanos)
+        + "us " + getAttributes();
+  }
+}
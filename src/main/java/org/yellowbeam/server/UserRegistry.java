@@ -17,13 +17,21 @@
 
 package org.yellowbeam.server;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.springframework.web.socket.WebSocketSession;
 
 /**
- * Map of users registered in the system. This class has a concurrent hash map to store users, using
- * its name as key in the map.
+ * Map of users registered in the system, indexed by name and by session ID. Lookups never lock.
+ * Changes are made under one of a fixed set of locks, chosen by the hash of the user name, so
+ * registering or removing a user updates the name index, the session index and the secondary
+ * indexes as a single step, without serializing changes to unrelated users.
+ *
+ * Besides the users themselves, the registry keeps which of them are in a call and which are
+ * publishing in a stream.
  * 
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
@@ -31,12 +39,40 @@ import org.springframework.web.socket.WebSocketSession;
  */
 public class UserRegistry {
 
-  private ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<>();
-  private ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
+  private static final int STRIPES = 64;
+
+  private final Object[] locks = new Object[STRIPES];
+  private final ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, UserSession> usersBySessionId =
+      new ConcurrentHashMap<>();
+  private final Set<UserSession> inCall = ConcurrentHashMap.newKeySet();
+  private final Set<UserSession> streaming = ConcurrentHashMap.newKeySet();
+
+  public UserRegistry() {
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new Object();
+    }
+  }
 
-  public void register(UserSession user) {
-    usersByName.put(user.getName(), user);
-    usersBySessionId.put(user.getSession().getId(), user);
+  private Object lockOf(String name) {
+    int hash = name.hashCode();
+    return locks[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+  }
+
+  /**
+   * Registers a user, unless its name or its session are already registered.
+   *
+   * @return false if the user was not registered
+   */
+  public boolean register(UserSession user) {
+    synchronized (lockOf(user.getName())) {
+      if (usersByName.containsKey(user.getName())
+          || usersBySessionId.putIfAbsent(user.getSessionId(), user) != null) {
+        return false;
+      }
+      usersByName.put(user.getName(), user);
+      return true;
+    }
   }
 
   public UserSession getByName(String name) {
@@ -47,17 +83,87 @@ public class UserRegistry {
     return usersBySessionId.get(session.getId());
   }
 
+  public UserSession getBySessionId(String sessionId) {
+    return usersBySessionId.get(sessionId);
+  }
+
   public boolean exists(String name) {
-    return usersByName.keySet().contains(name);
+    return usersByName.containsKey(name);
+  }
+
+  public Collection<UserSession> getUsers() {
+    return usersBySessionId.values();
+  }
+
+  public int size() {
+    return usersBySessionId.size();
   }
 
   public UserSession removeBySession(WebSocketSession session) {
-    final UserSession user = getBySession(session);
-    if (user != null) {
-      usersByName.remove(user.getName());
-      usersBySessionId.remove(session.getId());
+    return removeBySessionId(session.getId());
+  }
+
+  public UserSession removeBySessionId(String sessionId) {
+    UserSession user = usersBySessionId.get(sessionId);
+    if (user == null) {
+      return null;
+    }
+    synchronized (lockOf(user.getName())) {
+      if (!usersBySessionId.remove(sessionId, user)) {
+        return null;
+      }
+      usersByName.remove(user.getName(), user);
+      inCall.remove(user);
+      streaming.remove(user);
     }
     return user;
   }
 
+  /**
+   * Marks a registered user as taking part in a call or not. Users no longer registered are left
+   * out.
+   */
+  public void setInCall(UserSession user, boolean value) {
+    update(inCall, user, value);
+  }
+
+  /**
+   * Marks a registered user as publishing in a stream or not. Users no longer registered are left
+   * out.
+   */
+  public void setStreaming(UserSession user, boolean value) {
+    update(streaming, user, value);
+  }
+
+  private void update(Set<UserSession> index, UserSession user, boolean value) {
+    if (user == null) {
+      return;
+    }
+    if (!value) {
+      index.remove(user);
+      return;
+    }
+    synchronized (lockOf(user.getName())) {
+      if (usersBySessionId.get(user.getSessionId()) == user) {
+        index.add(user);
+      }
+    }
+  }
+
+  public boolean isInCall(UserSession user) {
+    return inCall.contains(user);
+  }
+
+  public boolean isStreaming(UserSession user) {
+    return streaming.contains(user);
+  }
+
+  public Set<UserSession> getUsersInCall() {
+    return Collections.unmodifiableSet(inCall);
+  }
+
+  public Set<UserSession> getUsersStreaming() {
+    return Collections.unmodifiableSet(streaming);
+  }
+
 }
@@ -20,8 +20,13 @@ package org.yellowbeam.server;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.kurento.client.IceCandidate;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.Transaction;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +38,12 @@ import com.google.gson.JsonObject;
 /**
  * User session.
  *
+ * What the user is doing is kept as a single immutable {@link State} snapshot together with its
+ * peer and its offer, and replaced with compare-and-set. Each transition only succeeds from the
+ * state it expects, so a stale or duplicate message finds the session in another state and is
+ * rejected before any work is asked from the media server. Remote ICE candidates may arrive from
+ * any thread, before or after the endpoint they belong to is set.
+ *
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
  * @since 4.3.1
@@ -41,14 +52,34 @@ public class UserSession {
 
   private static final Logger log = LoggerFactory.getLogger(UserSession.class);
 
+  /**
+   * <pre>
+   * IDLE -> CALLING -> IN_CALL -> STREAMING -> IN_CALL
+   * IDLE -> STREAMING (publishing in the stream of another call)
+   * IDLE -> VIEWING -> IDLE
+   * any state -> IDLE (the call or stream ends)
+   * </pre>
+   */
+  public enum State {
+    /** Registered, not taking part in anything. */
+    IDLE,
+    /** Calling a user, or being called, until the callee answers. */
+    CALLING,
+    IN_CALL,
+    /** Publishing video in a stream. */
+    STREAMING,
+    VIEWING
+  }
+
+  private static final Snapshot IDLE = new Snapshot(State.IDLE, null, null, null);
+
   private final String name;
   private final WebSocketSession session;
 
-  private String sdpOffer;
-  private String callingTo;
-  private String callingFrom;
-  private WebRtcEndpoint webRtcEndpoint;
-  private final List<IceCandidate> candidateList = new ArrayList<IceCandidate>();
+  private final AtomicReference<Snapshot> state = new AtomicReference<>(IDLE);
+  private volatile Media media;
+  private final ConcurrentLinkedQueue<IceCandidate> candidateList = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingCandidates = new AtomicInteger();
 
   /**
    * Contruct for Beamer User
@@ -68,28 +99,77 @@ public class UserSession {
     return name;
   }
 
-  public String getSdpOffer() {
-    return sdpOffer;
+  public State getState() {
+    return state.get().state;
   }
 
-  public void setSdpOffer(String sdpOffer) {
-    this.sdpOffer = sdpOffer;
+  /**
+   * @return the offer sent with the call, while calling
+   */
+  public String getSdpOffer() {
+    return state.get().sdpOffer;
   }
 
   public String getCallingTo() {
-    return callingTo;
+    return state.get().callingTo;
   }
 
-  public void setCallingTo(String callingTo) {
-    this.callingTo = callingTo;
+  public String getCallingFrom() {
+    return state.get().callingFrom;
   }
 
-  public String getCallingFrom() {
-    return callingFrom;
+  /**
+   * The user calls another one.
+   *
+   * @return false if the user is not idle
+   */
+  public boolean startCall(String to, String sdpOffer) {
+    return state.compareAndSet(IDLE, new Snapshot(State.CALLING, to, null, sdpOffer));
+  }
+
+  /**
+   * Another user calls this one.
+   *
+   * @return false if the user is busy
+   */
+  public boolean ring(String from) {
+    return state.compareAndSet(IDLE, new Snapshot(State.CALLING, null, from, null));
   }
 
-  public void setCallingFrom(String callingFrom) {
-    this.callingFrom = callingFrom;
+  /**
+   * The call between this user and a peer was answered.
+   *
+   * @return false if the user is not calling, or not being called by, that peer
+   */
+  public boolean connect(String peer) {
+    Snapshot current = state.get();
+    return current.isCalling(peer) && state.compareAndSet(current,
+        new Snapshot(State.IN_CALL, current.callingTo, current.callingFrom, null));
+  }
+
+  /**
+   * The call between this user and a peer was rejected or given up before it was answered.
+   *
+   * @return false if the user is not calling, or not being called by, that peer
+   */
+  public boolean cancelCall(String peer) {
+    Snapshot current = state.get();
+    return current.isCalling(peer) && state.compareAndSet(current, IDLE);
+  }
+
+  /**
+   * Moves between two states, keeping the peer of the call.
+   *
+   * @return false if the user was not in the expected state
+   */
+  public boolean transition(State from, State to) {
+    Snapshot current = state.get();
+    if (current.state != from) {
+      return false;
+    }
+    Snapshot next = to == State.IDLE ? IDLE
+        : new Snapshot(to, current.callingTo, current.callingFrom, current.sdpOffer);
+    return state.compareAndSet(current, next);
   }
 
   public void sendMessage(JsonObject message) throws IOException {
@@ -97,29 +177,129 @@ public class UserSession {
     session.sendMessage(new TextMessage(message.toString()));
   }
 
+  /**
+   * Sends a frame serialized beforehand, such as the constants of {@link SignalingCodec}.
+   */
+  public void sendMessage(TextMessage message) throws IOException {
+    session.sendMessage(message);
+  }
+
   public String getSessionId() {
     return session.getId();
   }
 
-  public void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint) {
-    this.webRtcEndpoint = webRtcEndpoint;
+  /**
+   * @param webRtcEndpoint
+   * @param kurento client of the media server hosting the endpoint
+   */
+  public void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint, KurentoClient kurento) {
+    Media media = new Media(webRtcEndpoint, kurento);
+    this.media = media;
+    flushCandidates(media);
+  }
 
-    for (IceCandidate e : candidateList) {
-      this.webRtcEndpoint.addIceCandidate(e);
+  public void addCandidate(IceCandidate candidate) {
+    Media media = this.media;
+    if (media != null) {
+      media.endpoint.addIceCandidate(candidate);
+      return;
     }
-    this.candidateList.clear();
+    candidateList.add(candidate);
+    pendingCandidates.incrementAndGet();
+    flushCandidates(this.media);
   }
 
-  public void addCandidate(IceCandidate candidate) {
-    if (this.webRtcEndpoint != null) {
-      this.webRtcEndpoint.addIceCandidate(candidate);
+  /**
+   * Adds a batch of remote candidates. They are sent to the media server in a single transaction
+   * instead of one request per candidate.
+   */
+  public void addCandidates(List<IceCandidate> candidates) {
+    Media media = this.media;
+    if (media == null) {
+      candidateList.addAll(candidates);
+      pendingCandidates.addAndGet(candidates.size());
+      // The endpoint may have been set meanwhile, after the buffer was flushed
+      flushCandidates(this.media);
     } else {
-      candidateList.add(candidate);
+      media.addCandidates(candidates);
+    }
+  }
+
+  private void flushCandidates(Media media) {
+    if (media == null) {
+      return;
     }
+    List<IceCandidate> pending = pollCandidates();
+    if (!pending.isEmpty()) {
+      media.addCandidates(pending);
+    }
+  }
+
+  private List<IceCandidate> pollCandidates() {
+    List<IceCandidate> polled = new ArrayList<>();
+    IceCandidate candidate;
+    while ((candidate = candidateList.poll()) != null) {
+      pendingCandidates.decrementAndGet();
+      polled.add(candidate);
+    }
+    return polled;
+  }
+
+  /**
+   * @return remote candidates buffered until the endpoint of the user is created
+   */
+  public int getPendingCandidates() {
+    return pendingCandidates.get();
   }
 
+  /**
+   * Forgets the endpoint of the user and its buffered candidates, and makes it idle again.
+   */
   public void clear() {
-    this.webRtcEndpoint = null;
-    this.candidateList.clear();
+    this.media = null;
+    pollCandidates();
+    state.set(IDLE);
+  }
+
+  private static final class Snapshot {
+
+    private final State state;
+    private final String callingTo;
+    private final String callingFrom;
+    private final String sdpOffer;
+
+    Snapshot(State state, String callingTo, String callingFrom, String sdpOffer) {
+      this.state = state;
+      this.callingTo = callingTo;
+      this.callingFrom = callingFrom;
+      this.sdpOffer = sdpOffer;
+    }
+
+    boolean isCalling(String peer) {
+      return state == State.CALLING && (peer.equals(callingTo) || peer.equals(callingFrom));
+    }
+  }
+
+  private static final class Media {
+
+    private final WebRtcEndpoint endpoint;
+    private final KurentoClient kurento;
+
+    Media(WebRtcEndpoint endpoint, KurentoClient kurento) {
+      this.endpoint = endpoint;
+      this.kurento = kurento;
+    }
+
+    void addCandidates(List<IceCandidate> candidates) {
+      if (candidates.size() == 1) {
+        endpoint.addIceCandidate(candidates.get(0));
+      } else if (!candidates.isEmpty()) {
+        Transaction tx = kurento.beginTransaction();
+        for (IceCandidate candidate : candidates) {
+          endpoint.addIceCandidate(candidate, tx);
+        }
+        tx.commit();
+      }
+    }
   }
 }
@@ -4,6 +4,9 @@ window.onload = function() {
     console = new Console();
 }
 
+ws.onopen = function() {
+	subscribeStreamDirectory(ws);
+}
 
 function selectStreaming() {
 	if (document.getElementById('streamname').value == '') {
@@ -28,7 +31,11 @@ ws.onmessage = function(message) {
 		discoverStreamsResponse(parsedMessage);
 		break;
 	default:
-		console.error('Unrecognized message', parsedMessage);
+		if (handleStreamDirectoryMessage(parsedMessage)) {
+			renderStreamDirectory(document.getElementById('streamList'));
+		} else {
+			console.error('Unrecognized message', parsedMessage);
+		}
 	}
 }
 
@@ -0,0 +1,16 @@
+var ws = new WebSocket('wss://' + location.host + '/call');
+
+ws.onopen = function() {
+	subscribeStreamDirectory(ws);
+}
+
+ws.onmessage = function(message) {
+	var parsedMessage = JSON.parse(message.data);
+	if (handleStreamDirectoryMessage(parsedMessage)) {
+		renderStreamDirectory(document.getElementById('liveStreams'));
+	}
+}
+
+window.onbeforeunload = function() {
+	ws.close();
+}
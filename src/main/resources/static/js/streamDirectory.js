@@ -0,0 +1,59 @@
+/*
+ * Live stream directory kept up to date by the server.
+ *
+ * After a 'subscribeStreams' message the server sends the whole directory once
+ * ('streamDirectory') and then only the changes ('streamDirectoryUpdate').
+ */
+
+var liveStreams = {};
+
+function subscribeStreamDirectory(ws) {
+	ws.send(JSON.stringify({
+		id : 'subscribeStreams'
+	}));
+}
+
+/**
+ * Applies a directory message. Returns false if the message is not a directory one.
+ */
+function handleStreamDirectoryMessage(message) {
+	switch (message.id) {
+	case 'streamDirectory':
+		liveStreams = {};
+		message.streams.forEach(function(stream) {
+			liveStreams[stream.name] = stream;
+		});
+		return true;
+	case 'streamDirectoryUpdate':
+		message.removed.forEach(function(name) {
+			delete liveStreams[name];
+		});
+		message.added.forEach(function(stream) {
+			liveStreams[stream.name] = stream;
+		});
+		for (var name in message.viewers) {
+			if (liveStreams[name]) {
+				liveStreams[name].viewers = message.viewers[name];
+			}
+		}
+		return true;
+	default:
+		return false;
+	}
+}
+
+function renderStreamDirectory(list) {
+	while (list.firstChild) {
+		list.removeChild(list.firstChild);
+	}
+	Object.keys(liveStreams).sort().forEach(function(name) {
+		var stream = liveStreams[name];
+		var link = document.createElement('a');
+		link.href = 'ver.html?streaming=' + encodeURIComponent(stream.name);
+		link.textContent = stream.name + ' (' + stream.participants.join(', ') + ') - '
+				+ stream.viewers + ' viewers';
+		var item = document.createElement('li');
+		item.appendChild(link);
+		list.appendChild(item);
+	});
+}
@@ -83,15 +83,18 @@ function setStreamingState(nextState) {
 	switch (nextState) {
 	case NO_STREAMING:
 		enableButton('#startStreaming', 'startStreaming()');
+		enableButton('#joinStream', 'joinStream()');
 		disableButton('#stopStreaming');
 		break;
 	case PROCESSING_STREAMING:
 		disableButton('#startStreaming');
+		disableButton('#joinStream');
 		disableButton('#stopStreaming');
 		break;
 	case IN_STREAMING:
 		enableButton('#stopStreaming', 'stopStreaming()');
 		disableButton('#startStreaming');
+		disableButton('#joinStream');
 		break;
 	default:
 		return;
@@ -132,6 +135,10 @@ ws.onmessage = function(message) {
 	case 'stopCommunication':
 		console.info('Communication ended by remote peer');
 		stop(true);
+		if (joinedStream) {
+			joinedStream = false;
+			setStreamingState(NO_STREAMING);
+		}
 		break;
 	case 'viewerRequest':
 		viewerRequest(parsedMessage);
@@ -142,9 +149,20 @@ ws.onmessage = function(message) {
 				return console.error('Error adding candidate: ' + error);
 		});
 		break;
+	case 'iceCandidates':
+		parsedMessage.candidates.forEach(function(candidate) {
+			webRtcPeer.addIceCandidate(candidate, function(error) {
+				if (error)
+					return console.error('Error adding candidate: ' + error);
+			});
+		});
+		break;
 	case 'initStreamResponse':
 		streamingResponse(parsedMessage);
 		break;
+	case 'joinStreamResponse':
+		joinStreamResponse(parsedMessage);
+		break;
 	default:
 		console.error('Unrecognized message', parsedMessage);
 	}
@@ -351,7 +369,8 @@ function startStreaming() {
 
 	var initStreamMessage = {
 		id : 'initStream',
-		stream : streamName
+		stream : streamName,
+		composite : document.getElementById('composite').checked
 	};
 	sendMessage(initStreamMessage);
 	document.getElementById('stream').focus();
@@ -370,23 +389,103 @@ function streamingResponse(message) {
 
 function stopStreaming() {
 	setStreamingState(NO_STREAMING);
+	if (joinedStream) {
+		joinedStream = false;
+		stop(true);
+		sendMessage({
+			id : 'leaveStream'
+		});
+		return;
+	}
 	var initStreamMessage = {
 		id : 'stopStream'
 	};
 	sendMessage(initStreamMessage);
 }
 
+// Publishes our camera into a stream started by somebody else
+var joinedStream = false;
+
+function joinStream() {
+	var streamName = document.getElementById('stream').value;
+	if (streamName == '') {
+		window.alert('You must insert the stream name');
+		return;
+	}
+	setStreamingState(PROCESSING_STREAMING);
+	showSpinner(videoInput);
+
+	var options = {
+		localVideo : videoInput,
+		onicecandidate : onIceCandidate,
+		onerror : onError
+	}
+	webRtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerSendonly(options,
+			function(error) {
+				if (error) {
+					return console.error(error);
+				}
+				webRtcPeer.generateOffer(function(error, offerSdp) {
+					if (error)
+						return console.error('Error generating the offer');
+					sendMessage({
+						id : 'joinStream',
+						stream : streamName,
+						sdpOffer : offerSdp
+					});
+				});
+			});
+}
+
+function joinStreamResponse(message) {
+	if (message.response != 'accepted') {
+		console.info('Could not join the stream: ' + message.message);
+		setStreamingState(NO_STREAMING);
+		stop(true);
+	} else {
+		joinedStream = true;
+		setStreamingState(IN_STREAMING);
+		webRtcPeer.processAnswer(message.sdpAnswer, function(error) {
+			if (error)
+				return console.error(error);
+		});
+		console.info('Publishing in the stream as ' + message.video);
+	}
+}
+
 function onError() {
 	setCallState(NO_CALL);
 }
 
+// Local candidates found within this window are sent in a single message
+const ICE_BATCH_WINDOW = 20;
+var pendingCandidates = [];
+
 function onIceCandidate(candidate) {
 	console.log("Local candidate" + JSON.stringify(candidate));
 
-	var message = {
-		id : 'onIceCandidate',
-		candidate : candidate
-	};
+	pendingCandidates.push(candidate);
+	if (pendingCandidates.length == 1) {
+		setTimeout(flushIceCandidates, ICE_BATCH_WINDOW);
+	}
+}
+
+function flushIceCandidates() {
+	var candidates = pendingCandidates;
+	pendingCandidates = [];
+
+	var message;
+	if (candidates.length == 1) {
+		message = {
+			id : 'onIceCandidate',
+			candidate : candidates[0]
+		};
+	} else {
+		message = {
+			id : 'iceCandidates',
+			candidates : candidates
+		};
+	}
 	sendMessage(message);
 }
 
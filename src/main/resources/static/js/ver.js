@@ -1,6 +1,8 @@
 const ws = new WebSocket('wss://' + location.host + '/call');
 
 let webRtcPeer;
+const webRtcPeers = {}; // One peer per requested video
+const streamRequests = {}; // Last streamRequest sent for each video, resent when the server is busy
 
 var stream2subscribe;
 var containedVideos;
@@ -50,18 +52,34 @@ ws.onmessage = function(message)
     case 'streamResponse':
       handleProcessSdpAnswer(jsonMessage);
       break;
+    case 'streamQueued':
+      console.info("Waiting to join the stream: position " + jsonMessage.position
+          + ", about " + Math.ceil(jsonMessage.estimatedWaitMs / 1000) + " s");
+      break;
     case 'iceCandidate':
-      webRtcPeer.addIceCandidate(jsonMessage.candidate, function(error) {
+      peerFor(jsonMessage).addIceCandidate(jsonMessage.candidate, function(error) {
         if (error)
           return console.error('Error adding candidate: ' + error);
         });
       break;
+    case 'iceCandidates':
+      jsonMessage.candidates.forEach(function(candidate) {
+        peerFor(jsonMessage).addIceCandidate(candidate, function(error) {
+          if (error)
+            return console.error('Error adding candidate: ' + error);
+          });
+      });
+      break;
     default:
       console.warn("[onmessage] Invalid message, id: " + jsonMessage.id);
       break;
   }
 }
 
+function peerFor(jsonMessage) {
+  return (jsonMessage.video && webRtcPeers[jsonMessage.video]) || webRtcPeer;
+}
+
 function discoverStreamsMessage() {
   var message = {
 		id : 'discoverStreams',
@@ -80,31 +98,94 @@ function discoverStreamsResponse(jsonMessage) {
 }
 
 function seekVideo() {
-  selectedVideo = containedVideos[currentSeekVideo]; //TODO for with all array and create streamingDivs dynamically
+  selectedVideo = containedVideos[currentSeekVideo];
   console.info("Seeking for video: " + selectedVideo);
   if(currentSeekVideo == 0){
     startStreaming(maingameplay);
-  }else{
+  }else if(currentSeekVideo == 1){
     startStreaming(secondgameplay);
+  }else{
+    startStreaming(createStreamingVideo(selectedVideo));
   }
   currentSeekVideo++;
 }
 
+// Streams can have more videos than the two call peers, each extra one gets its own div
+function createStreamingVideo(video) {
+  const div = document.createElement("div");
+  div.id = "gameplay_" + video;
+  div.className = "draggable_div";
+  const streamingVid = document.createElement("video");
+  streamingVid.autoplay = true;
+  streamingVid.width = 640;
+  streamingVid.height = 480;
+  div.appendChild(streamingVid);
+  document.getElementById("div_retransmision").appendChild(div);
+  dragElement(div);
+  return streamingVid;
+}
+
 function startStreaming(streamingVid) {
 
   showSpinner(streamingVid);
+  const video = selectedVideo;
+  let peer;
   var options = {
     remoteVideo : streamingVid,
-    onicecandidate : onIceCandidate
+    onicecandidate : function(candidate) {
+      // The peer may have been switched to another video since it was created
+      onIceCandidate(candidate, peer.video);
+    }
   }
-  webRtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerRecvonly(options,
+  peer = new kurentoUtils.WebRtcPeer.WebRtcPeerRecvonly(options,
     function(error) {
       if (error) {
         return console.error(error);
       }
-      webRtcPeer.generateOffer(onOfferStream);
+      peer.generateOffer(onOfferStream);
     });
+  peer.video = video;
+  webRtcPeer = peer;
+  webRtcPeers[video] = peer;
+  streamingVid.ondblclick = function() {
+    switchToNextVideo(peer.video);
+  };
+
+}
 
+// Shows in the place of a video the next video of the stream not received yet. The server feeds
+// the existing peer from the other video, without a new offer
+function switchToNextVideo(video) {
+  const start = containedVideos.indexOf(video);
+  for (let i = 1; i < containedVideos.length; i++) {
+    const next = containedVideos[(start + i) % containedVideos.length];
+    if (!webRtcPeers[next]) {
+      var message = {
+        id : 'streamRequest',
+        stream : stream2subscribe,
+        video : next,
+        replaces : video
+      };
+      streamRequests[next] = message;
+      sendMessage(message);
+      return;
+    }
+  }
+  console.info("Every video of the stream is already shown");
+}
+
+// The peer receiving a video now receives another one
+function handleSwitch(jsonMessage)
+{
+  const peer = webRtcPeers[jsonMessage.replaces];
+  if (peer == null) {
+    console.warn("[handleSwitch] Skip, no WebRTC Peer for " + jsonMessage.replaces);
+    return;
+  }
+  delete webRtcPeers[jsonMessage.replaces];
+  webRtcPeers[jsonMessage.video] = peer;
+  peer.video = jsonMessage.video;
+  console.log("[handleSwitch] Now receiving " + jsonMessage.video);
 }
 
 function onOfferStream(error, offerSdp) {
@@ -115,22 +196,62 @@ function onOfferStream(error, offerSdp) {
     id : 'streamRequest',
     stream : stream2subscribe,
     video : selectedVideo,
+    bandwidth : estimateBandwidth(),
 		sdpOffer : offerSdp
 	};
+	streamRequests[selectedVideo] = message;
 	sendMessage(message);
 }
 
+// Downlink estimate of the browser in kbps, 0 when it is not available
+function estimateBandwidth() {
+  const connection = navigator.connection;
+  return connection && connection.downlink ? Math.round(connection.downlink * 1000) : 0;
+}
+
+// The server moves our videos to another rendition when the bandwidth changes
+if (navigator.connection) {
+  navigator.connection.addEventListener('change', function() {
+    const bandwidth = estimateBandwidth();
+    for (const video in webRtcPeers) {
+      sendMessage({
+        id : 'viewerBandwidth',
+        video : video,
+        bandwidth : bandwidth
+      });
+    }
+  });
+}
+
 // PROCESS_SDP_ANSWER ----------------------------------------------------------
 function handleProcessSdpAnswer(jsonMessage)
 {
   console.log("[handleProcessSdpAnswer] SDP Answer from Kurento, process in WebRTC Peer");
 
-  if (webRtcPeer == null) {
+  if (jsonMessage.replaces && jsonMessage.response == 'accepted') {
+    // A switch of an existing peer, there is no SDP answer
+    handleSwitch(jsonMessage);
+    return;
+  }
+
+  const peer = peerFor(jsonMessage);
+  if (peer == null) {
     console.warn("[handleProcessSdpAnswer] Skip, no WebRTC Peer");
     return;
   }
+  if (jsonMessage.response != 'accepted') {
+    console.warn("[handleProcessSdpAnswer] Stream request rejected: " + jsonMessage.message);
+    if (jsonMessage.retryAfterMs) {
+      // The server is busy, send the same offer again later
+      const request = streamRequests[jsonMessage.video];
+      setTimeout(function() {
+        sendMessage(request);
+      }, jsonMessage.retryAfterMs);
+    }
+    return;
+  }
 
-  webRtcPeer.processAnswer(jsonMessage.sdpAnswer, (err) => {
+  peer.processAnswer(jsonMessage.sdpAnswer, (err) => {
     if (err) {
       sendError("[handleProcessSdpAnswer] Error: " + err);
       stop();
@@ -152,10 +273,11 @@ function stop()
 
   console.log("[stop]");
 
-  if (webRtcPeer) {
-    webRtcPeer.dispose();
-    webRtcPeer = null;
+  for (const video in webRtcPeers) {
+    webRtcPeers[video].dispose();
+    delete webRtcPeers[video];
   }
+  webRtcPeer = null;
 
   sendMessage({
     id: 'STOP',
@@ -195,14 +317,39 @@ function handleAddIceCandidate(jsonMessage)
   });
 }
 
-function onIceCandidate(candidate) {
+// Local candidates found within this window are sent in a single message per video
+const ICE_BATCH_WINDOW = 20;
+const pendingCandidates = {};
+
+function onIceCandidate(candidate, video) {
 	console.log("Local candidate" + JSON.stringify(candidate));
 
-	var message = {
-		id : 'onIceCandidate',
-		candidate : candidate
-	};
-	sendMessage(message);
+  if (!pendingCandidates[video]) {
+    pendingCandidates[video] = [];
+    setTimeout(function() {
+      flushIceCandidates(video);
+    }, ICE_BATCH_WINDOW);
+  }
+  pendingCandidates[video].push(candidate);
+}
+
+function flushIceCandidates(video) {
+  const candidates = pendingCandidates[video];
+  delete pendingCandidates[video];
+
+  if (candidates.length == 1) {
+    sendMessage({
+      id : 'onIceCandidate',
+      video : video,
+      candidate : candidates[0]
+    });
+  } else {
+    sendMessage({
+      id : 'iceCandidates',
+      video : video,
+      candidates : candidates
+    });
+  }
 }
 
 